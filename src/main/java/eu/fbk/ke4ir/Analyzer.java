@@ -34,6 +34,7 @@ import org.tartarus.snowball.SnowballProgram;
 import ixa.kaflib.KAFDocument;
 
 import eu.fbk.ke4ir.TermVector.Builder;
+import eu.fbk.ke4ir.util.NamespaceMatcher;
 import eu.fbk.rdfpro.util.Hash;
 import eu.fbk.rdfpro.util.Namespaces;
 import eu.fbk.rdfpro.util.QuadModel;
@@ -435,13 +436,15 @@ public abstract class Analyzer {
 
         private static final URI OWLTIME_DAY = new URIImpl("http://www.w3.org/TR/owl-time#day");
 
-        private final URI denotedByProperty;
+        private static final int URI_NS = 0x01;
+
+        private static final int TYPE_NS = 0x02;
 
-        private final Set<String> uriNamespaces;
+        private static final int FRAME_NS = 0x04;
 
-        private final Set<String> typeNamespaces;
+        private final URI denotedByProperty;
 
-        private final Set<String> frameNamespaces;
+        private final NamespaceMatcher matcher;
 
         SemanticAnalyzer(final URI denotedByProperty,
                 @Nullable final Iterable<String> uriNamespaces,
@@ -449,12 +452,8 @@ public abstract class Analyzer {
                 @Nullable final Iterable<String> frameNamespaces) {
 
             this.denotedByProperty = Objects.requireNonNull(denotedByProperty);
-            this.uriNamespaces = uriNamespaces == null ? ImmutableSet.of() : ImmutableSet
-                    .copyOf(uriNamespaces);
-            this.typeNamespaces = typeNamespaces == null ? ImmutableSet.of() : ImmutableSet
-                    .copyOf(typeNamespaces);
-            this.frameNamespaces = frameNamespaces == null ? ImmutableSet.of() : ImmutableSet
-                    .copyOf(frameNamespaces);
+            this.matcher = NamespaceMatcher.create(uriNamespaces, typeNamespaces,
+                    frameNamespaces);
         }
 
         @Override
@@ -484,8 +483,8 @@ public abstract class Analyzer {
                 for (final Resource entity : mentionEntities) {
 
                     // Extract a URI term if the mentioned entity is a URI in a specific namespace
-                    if (entity instanceof URI
-                            && this.uriNamespaces.contains(((URI) entity).getNamespace())) {
+                    if (entity instanceof URI && (this.matcher.matchExact( //
+                            ((URI) entity).getNamespace()) & URI_NS) != 0) {
                         uris.add(format((URI) entity));
                     }
 
@@ -495,17 +494,18 @@ public abstract class Analyzer {
                             continue; // consider only URI types
                         }
                         final URI uri = (URI) value;
-                        final String ns = uri.getNamespace();
-                        if (this.typeNamespaces.contains(ns)) {
+                        final int mask = this.matcher.matchExact(uri.getNamespace());
+                        if ((mask & TYPE_NS) != 0) {
                             types.add(format(uri));
                         }
-                        if (this.frameNamespaces.contains(ns)) {
+                        if ((mask & FRAME_NS) != 0) {
                             // In case of frames we consider as participants all the entities
                             // connected to the frame entity that (1) have mentions in the document
                             // and (2) are identified by URIs in uriNamespaces
                             for (final Value part : model.filter(entity, null, null).objects()) {
                                 if (part instanceof URI && entities.contains(part) && //
-                                        this.uriNamespaces.contains(((URI) part).getNamespace())) {
+                                        (this.matcher.matchExact(((URI) part).getNamespace())
+                                                & URI_NS) != 0) {
                                     frames.add(format(uri) + "__" + format((URI) part));
                                 }
                             }
@@ -3,6 +3,7 @@ package eu.fbk.ke4ir;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
@@ -10,21 +11,26 @@ import java.util.Set;
 import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.SESAME;
 import org.openrdf.rio.RDFHandlerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fbk.ke4ir.util.KeyQuadIndex;
+import eu.fbk.ke4ir.util.NamespaceMatcher;
+import eu.fbk.rdfpro.AbstractRDFHandler;
 import eu.fbk.rdfpro.RDFHandlers;
 import eu.fbk.rdfpro.RDFProcessor;
 import eu.fbk.rdfpro.RDFProcessors;
@@ -42,7 +48,8 @@ import eu.fbk.rdfpro.util.QuadModel;
  * <ul>
  * <li>URI enrichment (configured via {@link #createURIEnricher(Path, Iterable, Iterable)} matches
  * selected URIs in the graph and add additional triples having them as subjects, possibly
- * repeating the process recursively for newly introduced URIs;</li>
+ * repeating the process recursively for newly introduced URIs, and optionally triples having
+ * them as objects (incoming edges);</li>
  * <li>RDFS enrichment (configured via {@link #createRDFSEnricher()} materializes the RDFS closure
  * of the knowledge graph.</li>
  * <li>RDFProcessor enrichment (configured via {@link #createRDFProcessorEnricher(RDFProcessor)}
@@ -137,7 +144,67 @@ public abstract class Enricher {
     public static Enricher createURIEnricher(final Path indexPath,
             final Iterable<String> nonRecursiveNamespaces,
             final Iterable<String> recursiveNamespaces) {
-        return new URIEnricher(indexPath, nonRecursiveNamespaces, recursiveNamespaces);
+        return createURIEnricher(indexPath, nonRecursiveNamespaces, recursiveNamespaces, 0);
+    }
+
+    /**
+     * Returns an enricher that augments selected URIs with additional triples loaded from an
+     * external key-value index, interning the URIs decoded from the index in a cache of the
+     * specified size. See {@link #createURIEnricher(Path, Iterable, Iterable)} for a description
+     * of URI enrichment and of the other parameters.
+     *
+     * @param indexPath
+     *            the path where the files of the persistent key-value index are stored
+     * @param nonRecursiveNamespaces
+     *            the URI namespaces for which to enable non-recursive enrichment
+     * @param recursiveNamespaces
+     *            the URI namespaces for which to enable recursive enrichment
+     * @param cacheSize
+     *            the number of entries of the cache interning decoded URIs; 0 to disable it
+     * @return the created enricher
+     */
+    public static Enricher createURIEnricher(final Path indexPath,
+            final Iterable<String> nonRecursiveNamespaces,
+            final Iterable<String> recursiveNamespaces, final int cacheSize) {
+        return createURIEnricher(indexPath, null, 0, nonRecursiveNamespaces, recursiveNamespaces,
+                cacheSize);
+    }
+
+    /**
+     * Returns an enricher that augments selected URIs with additional triples loaded from an
+     * external key-value index and, optionally, with their incoming edges loaded from a second
+     * index keyed on the object. Incoming edges are looked up (non-recursively) for the selected
+     * URIs occurring as subject or object in the original knowledge graph, excluding predicates
+     * and the classes of {@code rdf:type} triples, and are useful to add inverse relations not
+     * materialized in the first index. As popular entities may have a huge number of incoming
+     * edges, only a limited number of them is added for each URI. Both indexes share the same
+     * cache. See
+     * {@link #createURIEnricher(Path, Iterable, Iterable)} for a description of URI enrichment
+     * and of the other parameters.
+     *
+     * @param indexPath
+     *            the path where the files of the persistent key-value index are stored
+     * @param inverseIndexPath
+     *            the path of the index keyed on the object, built using
+     *            {@link KeyQuadIndex#main(String...)} with option {@code -c o}; null to disable
+     *            enrichment with incoming edges
+     * @param maxIncomingEdges
+     *            the max number of incoming edges added for each URI, further edges being
+     *            discarded; 0 for no limit
+     * @param nonRecursiveNamespaces
+     *            the URI namespaces for which to enable non-recursive enrichment
+     * @param recursiveNamespaces
+     *            the URI namespaces for which to enable recursive enrichment
+     * @param cacheSize
+     *            the number of entries of the cache interning decoded URIs; 0 to disable it
+     * @return the created enricher
+     */
+    public static Enricher createURIEnricher(final Path indexPath,
+            @Nullable final Path inverseIndexPath, final int maxIncomingEdges,
+            final Iterable<String> nonRecursiveNamespaces,
+            final Iterable<String> recursiveNamespaces, final int cacheSize) {
+        return new URIEnricher(indexPath, inverseIndexPath, maxIncomingEdges,
+                nonRecursiveNamespaces, recursiveNamespaces, cacheSize);
     }
 
     /**
@@ -171,6 +238,13 @@ public abstract class Enricher {
      * which URIs recursive URI enrichment should be enabled;</li>
      * <li>{@code uri.norecursion} - a space-separated list of namespace URI strings controlling
      * for which URIs non-recursive URI enrichment should be enabled;</li>
+     * <li>{@code uri.index.inverse} - if specified, the URI enricher also adds the incoming
+     * edges of selected URIs, loaded from the object-keyed index at the path used as value of the
+     * property;</li>
+     * <li>{@code uri.index.inverse.max} - the max number of incoming edges added for each URI
+     * (default 1000, 0 for no limit);</li>
+     * <li>{@code uri.cache} - the number of entries of the cache interning URIs read from the
+     * indexes (default 0, i.e., no cache);</li>
      * </ul>
      *
      * @param root
@@ -197,13 +271,20 @@ public abstract class Enricher {
         // Add an enricher adding triples about certain URIs, possibly recursively
         if (types.contains("uri")) {
             final String uriIndexPath = properties.getProperty(prefix + "uri.index");
+            final String uriInverseIndexPath = properties.getProperty(prefix
+                    + "uri.index.inverse");
             final Set<String> recursionNS = ImmutableSet
                     .copyOf(properties.getProperty(prefix + "uri.recursion", "").split("\\s+"));
             final Set<String> noRecursionNS = ImmutableSet
                     .copyOf(properties.getProperty(prefix + "uri.norecursion", "").split("\\s+"));
+            final int maxIncomingEdges = Integer.parseInt(properties.getProperty( //
+                    prefix + "uri.index.inverse.max", "1000").trim());
+            final int cacheSize = Integer.parseInt(properties.getProperty( //
+                    prefix + "uri.cache", "0").trim());
             if (!recursionNS.isEmpty() && !noRecursionNS.isEmpty()) {
-                enrichers.add(
-                        createURIEnricher(root.resolve(uriIndexPath), noRecursionNS, recursionNS));
+                enrichers.add(createURIEnricher(root.resolve(uriIndexPath),
+                        uriInverseIndexPath == null ? null : root.resolve(uriInverseIndexPath),
+                        maxIncomingEdges, noRecursionNS, recursionNS, cacheSize));
             }
         }
 
@@ -279,41 +360,73 @@ public abstract class Enricher {
 
     private static final class URIEnricher extends Enricher {
 
+        private static final int NON_RECURSIVE = 0x01;
+
+        private static final int RECURSIVE = 0x02;
+
         private final Path indexPath;
 
+        @Nullable
+        private final Path inverseIndexPath;
+
+        private final int maxIncomingEdges;
+
         @Nullable
         private KeyQuadIndex index;
 
+        @Nullable
+        private KeyQuadIndex inverseIndex;
+
+        @Nullable
+        private final KeyQuadIndex.ValueCache cache;
+
         private final Set<String> nonRecursiveNamespaces;
 
         private final Set<String> recursiveNamespaces;
 
-        URIEnricher(final Path indexPath, final Iterable<String> nonRecursiveNamespaces,
-                final Iterable<String> recursiveNamespaces) {
+        private final NamespaceMatcher matcher;
 
+        URIEnricher(final Path indexPath, @Nullable final Path inverseIndexPath,
+                final int maxIncomingEdges, final Iterable<String> nonRecursiveNamespaces,
+                final Iterable<String> recursiveNamespaces, final int cacheSize) {
+
+            Preconditions.checkArgument(maxIncomingEdges >= 0, "Invalid max incoming edges %s",
+                    maxIncomingEdges);
             this.indexPath = Objects.requireNonNull(indexPath);
+            this.inverseIndexPath = inverseIndexPath;
+            this.maxIncomingEdges = maxIncomingEdges;
             this.index = null;
+            this.inverseIndex = null;
+            this.cache = cacheSize <= 0 ? null : KeyQuadIndex.ValueCache.create(cacheSize);
             this.nonRecursiveNamespaces = nonRecursiveNamespaces == null ? ImmutableSet.of()
                     : ImmutableSet.copyOf(nonRecursiveNamespaces);
             this.recursiveNamespaces = recursiveNamespaces == null ? ImmutableSet.of()
                     : ImmutableSet.copyOf(recursiveNamespaces);
+            this.matcher = NamespaceMatcher.create(this.nonRecursiveNamespaces,
+                    this.recursiveNamespaces);
         }
 
         @Override
         public void enrich(final QuadModel model) {
 
+            // Incoming edges are looked up only for entities, not for predicates and classes
             final Set<URI> uris = Sets.newHashSet();
+            final Set<URI> entities = Sets.newHashSet();
             for (final Statement stmt : model) {
-                collect(uris, stmt.getSubject());
-                collect(uris, stmt.getPredicate());
-                collect(uris, stmt.getObject());
+                collect(uris, entities, stmt.getSubject());
+                collect(uris, null, stmt.getPredicate());
+                collect(uris, stmt.getPredicate().equals(RDF.TYPE) ? null : entities,
+                        stmt.getObject());
             }
 
             try {
                 final int numTriplesBefore = model.size();
                 getIndex().getRecursive(uris, (final Value v) -> {
-                    return matches(v, this.recursiveNamespaces);
+                    return (this.matcher.match(v) & RECURSIVE) != 0;
                 }, RDFHandlers.wrap(model));
+                if (this.inverseIndexPath != null && !entities.isEmpty()) {
+                    getInverseIndex().getAll(entities, new IncomingEdgesHandler(model));
+                }
                 LOGGER.debug("Enriched {} URIs with {} triples", uris.size(),
                         model.size() - numTriplesBefore);
             } catch (final RDFHandlerException ex) {
@@ -323,39 +436,65 @@ public abstract class Enricher {
 
         @Override
         public String toString() {
-            return getClass().getSimpleName() + "(path: " + this.indexPath + ", recursion:"
+            return getClass().getSimpleName() + "(path: " + this.indexPath
+                    + (this.inverseIndexPath == null ? "" : ", inverse path: "
+                            + this.inverseIndexPath) + ", recursion:"
                     + this.recursiveNamespaces + ". norecursion:" + this.nonRecursiveNamespaces
                     + ")";
         }
 
-        private void collect(final Set<URI> set, final Value value) {
-            if (value instanceof URI && (matches(value, this.nonRecursiveNamespaces)
-                    || matches(value, this.recursiveNamespaces))) {
+        private void collect(final Set<URI> set, @Nullable final Set<URI> entitySet,
+                final Value value) {
+            if ((this.matcher.match(value) & (NON_RECURSIVE | RECURSIVE)) != 0) {
                 set.add((URI) value);
-            }
-        }
-
-        private boolean matches(final Value value, final Set<String> namespaces) {
-            if (value instanceof URI) {
-                final String str = value.stringValue();
-                for (final String namespace : namespaces) {
-                    if (str.startsWith(namespace)) {
-                        return true;
-                    }
+                if (entitySet != null) {
+                    entitySet.add((URI) value);
                 }
             }
-            return false;
         }
 
         private synchronized KeyQuadIndex getIndex() {
             if (this.index == null) {
                 // The index is loaded on-demand, to avoid incurring in the associated cost when
                 // the enricher object is created (e.g., because configured) but never called
-                this.index = new KeyQuadIndex(this.indexPath.toFile());
+                this.index = new KeyQuadIndex(this.indexPath.toFile(), this.cache);
             }
             return this.index;
         }
 
+        private synchronized KeyQuadIndex getInverseIndex() {
+            if (this.inverseIndex == null) {
+                this.inverseIndex = new KeyQuadIndex(this.inverseIndexPath.toFile(), this.cache);
+            }
+            return this.inverseIndex;
+        }
+
+        private final class IncomingEdgesHandler extends AbstractRDFHandler {
+
+            private final QuadModel model;
+
+            private final Map<Value, Integer> counts;
+
+            IncomingEdgesHandler(final QuadModel model) {
+                this.model = model;
+                this.counts = Maps.newHashMap();
+            }
+
+            @Override
+            public void handleStatement(final Statement stmt) {
+                // Quads are keyed by their object, i.e., the URI whose incoming edges they are
+                final int max = URIEnricher.this.maxIncomingEdges;
+                final int count = this.counts.merge(stmt.getObject(), 1, Integer::sum);
+                if (max == 0 || count <= max) {
+                    this.model.add(stmt);
+                } else if (count == max + 1) {
+                    LOGGER.debug("Too many incoming edges for {}, keeping only {}",
+                            stmt.getObject(), max);
+                }
+            }
+
+        }
+
     }
 
     private static final class RDFProcessorEnricher extends Enricher {
@@ -9,32 +9,44 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.Sets;
 import com.google.common.primitives.Doubles;
 
 import org.apache.commons.math3.stat.inference.TTest;
-import org.apache.lucene.analysis.core.KeywordAnalyzer;
-import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.TermContext;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TermStatistics;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,16 +76,90 @@ final class Evaluation {
 
     private final String statisticalTest;
 
+    private final int statisticalTestIterations;
+
+    private final int statisticalTestMaxExceedances;
+
+    private final int maxClauses;
+
+    @Nullable
+    private final IndexSearcher scoringSearcher;
+
+    private final int topK;
+
+    @Nullable
+    private final MaxScoreSearcher maxScoreSearcher;
+
     private final String[][] settings;
 
     private final int baselineIndex;
 
-    private final Map<String, TermVector> documentVectors;
-
+    private final String[] documentIDs; // indexed by doc ordinal, null for deleted docs
+
+    private final TermVector[] documentVectors; // indexed by doc ordinal, filled lazily
+
+    private final boolean decodeVectors; // whether to decode missing vectors from doc values
+
+    /**
+     * Creates a new evaluation.
+     *
+     * @param searcher
+     *            the searcher for the document index
+     * @param ranker
+     *            the ranker used to score matched documents
+     * @param layers
+     *            the layers to evaluate, in any combination
+     * @param baselineLayers
+     *            the layers of the baseline setting, to which other settings are compared
+     * @param sortMeasure
+     *            the measure used to sort settings in reports
+     * @param statisticalTest
+     *            the statistical test to apply, either "ttest" or "ar"
+     * @param statisticalTestIterations
+     *            the number of iterations of the "ar" statistical test
+     * @param statisticalTestMaxExceedances
+     *            the number of iterations of the "ar" statistical test exceeding the observed
+     *            difference after which to stop the test early; 0 to disable early stopping
+     * @param maxClauses
+     *            the max number of clauses of each Lucene query; query layers with more terms
+     *            are matched using multiple queries, each covering a chunk of terms
+     * @param mode
+     *            either "rerank", to match documents in Lucene and score them with
+     *            {@link Ranker#rank}, or "native", to both match and score documents in Lucene
+     *            using the query and similarity supplied by the ranker
+     * @param topK
+     *            the number of top documents to retrieve for each query and setting in native
+     *            mode, skipping documents that cannot enter the top-k; 0 to retrieve and rank all
+     *            the matching documents
+     * @param documentVectors
+     *            the document vectors indexed by document ID, or null to decode them from the
+     *            "vector" binary doc values field of the index, which must then be present for
+     *            all the documents
+     * @throws IOException
+     *             on failure loading document IDs from the index
+     */
     public Evaluation(final IndexSearcher searcher, final Ranker ranker,
             final Iterable<String> layers, final Iterable<String> baselineLayers,
             final Measure sortMeasure, final String statisticalTest,
-            final Map<String, TermVector> documentVectors) {
+            final int statisticalTestIterations, final int statisticalTestMaxExceedances,
+            final int maxClauses, final String mode, final int topK,
+            @Nullable final Map<String, TermVector> documentVectors) throws IOException {
+
+        Preconditions.checkArgument(maxClauses > 0, "Invalid max clause count %s", maxClauses);
+
+        IndexSearcher scoringSearcher = null;
+        if ("native".equalsIgnoreCase(mode)) {
+            Preconditions.checkArgument(ranker.getSimilarity() != null,
+                    "Ranker %s does not support native mode", ranker);
+            scoringSearcher = new IndexSearcher(searcher.getIndexReader());
+            scoringSearcher.setSimilarity(ranker.getSimilarity());
+        } else {
+            Preconditions.checkArgument("rerank".equalsIgnoreCase(mode), "Invalid mode %s",
+                    mode);
+        }
+        Preconditions.checkArgument(topK >= 0, "Invalid top-k %s", topK);
+        Preconditions.checkArgument(topK == 0 || scoringSearcher != null,
+                "Top-k retrieval requires native mode");
 
         final List<String> layerList = ImmutableList.copyOf(layers);
         final String[][] settings = new String[(1 << layerList.size()) - 1][];
@@ -98,9 +184,53 @@ final class Evaluation {
         this.layers = layerList;
         this.sortMeasure = sortMeasure;
         this.statisticalTest = statisticalTest;
+        this.statisticalTestIterations = statisticalTestIterations;
+        this.statisticalTestMaxExceedances = statisticalTestMaxExceedances;
+        this.maxClauses = maxClauses;
+        this.scoringSearcher = scoringSearcher;
+        this.topK = topK;
+        this.maxScoreSearcher = topK == 0 ? null : new MaxScoreSearcher(scoringSearcher);
         this.settings = settings;
         this.baselineIndex = baselineIndex;
-        this.documentVectors = documentVectors;
+        this.documentIDs = loadDocumentIDs(searcher.getIndexReader());
+        this.documentVectors = new TermVector[this.documentIDs.length];
+        this.decodeVectors = documentVectors == null;
+        if (documentVectors != null) {
+            for (int doc = 0; doc < this.documentIDs.length; ++doc) {
+                if (this.documentIDs[doc] != null) {
+                    this.documentVectors[doc] = documentVectors.get(this.documentIDs[doc]);
+                }
+            }
+        }
+    }
+
+    private static String[] loadDocumentIDs(final IndexReader reader) throws IOException {
+
+        // Map each doc ordinal to the document ID, reading it from "id" sorted doc values, if
+        // available, or from stored fields otherwise (e.g., for indexes built by older versions)
+        final long ts = System.currentTimeMillis();
+        final String[] ids = new String[reader.maxDoc()];
+        final SortedDocValues values = MultiDocValues.getSortedValues(reader, "id");
+        final Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int numStored = 0;
+        for (int doc = 0; doc < ids.length; ++doc) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                final int ord = values == null ? -1 : values.getOrd(doc);
+                if (ord >= 0) {
+                    ids[doc] = values.lookupOrd(ord).utf8ToString();
+                } else {
+                    ids[doc] = reader.document(doc, ImmutableSet.of("id")).get("id");
+                    ++numStored;
+                }
+            }
+        }
+        if (numStored > 0) {
+            LOGGER.warn("{} document IDs read from stored fields as missing in doc values "
+                    + "(reindex to speed up loading)", numStored);
+        }
+        LOGGER.info("Loaded {} document IDs in {} ms", reader.numDocs(),
+                System.currentTimeMillis() - ts);
+        return ids;
     }
 
     public void run(final Map<String, TermVector> queries,
@@ -111,6 +241,14 @@ final class Evaluation {
 
         final List<QueryEvaluation> evaluations = evaluateQueries(queries, rels, statistics);
 
+        // Report how much work was saved by top-k retrieval, if enabled
+        if (this.maxScoreSearcher != null) {
+            final MaxScoreSearcher s = this.maxScoreSearcher;
+            LOGGER.info("Top-{} retrieval: {} documents scored, {} skipped after partial "
+                    + "scoring, {}/{} postings read", this.topK, s.getNumScored(),
+                    s.getNumPruned(), s.getNumPostingsRead(), s.getNumPostings());
+        }
+
         final RankingScore[] scores = aggregateScores(evaluations);
 
         final Map<Measure, float[]> pvalues = statisticalTest(evaluations);
@@ -134,6 +272,91 @@ final class Evaluation {
         logCompletion(scores, pvalues);
     }
 
+    /**
+     * Evaluates the supplied queries for each of the layer weight vectors specified, writing a
+     * {@code sweep.csv} file with the aggregate scores of each weight vector and setting.
+     * Documents are matched, loaded and scored once per query (using per-term partial scores, if
+     * supported by the ranker), after which rankings for the different weight vectors are
+     * computed and evaluated in parallel. As partial scores are combined exactly, each weight
+     * vector gets the same rankings and scores that {@link #run(Map, Map, Path)} would produce.
+     * Requires rerank mode and a ranker supporting {@link Ranker#withLayerWeights(Map)}.
+     *
+     * @param queries
+     *            the query vectors, indexed by query ID
+     * @param rels
+     *            the gold relevances, indexed by query ID and then document ID
+     * @param layerWeights
+     *            the layer weight vectors to evaluate
+     * @param resultPath
+     *            the directory where to write the results
+     * @throws IllegalArgumentException
+     *             if the ranker does not support layer weights
+     * @throws IOException
+     *             on failure
+     */
+    public void sweep(final Map<String, TermVector> queries,
+            final Map<String, Map<String, Double>> rels,
+            final List<Map<String, Float>> layerWeights, final Path resultPath)
+            throws IOException {
+
+        Preconditions.checkState(this.scoringSearcher == null, "Sweep requires rerank mode");
+
+        // Create the ranker of each weight vector upfront, so to fail before doing any work if
+        // the ranker does not support layer weights
+        final List<Ranker> rankers = Lists.newArrayListWithCapacity(layerWeights.size());
+        for (final Map<String, Float> weights : layerWeights) {
+            try {
+                rankers.add(this.ranker.withLayerWeights(weights));
+            } catch (final UnsupportedOperationException ex) {
+                throw new IllegalArgumentException("Ranker " + this.ranker
+                        + " does not support layer weights", ex);
+            }
+        }
+
+        // Compute ranker statistics, match documents and compute partial scores for each
+        // query, which are reused for all the weight vectors
+        final Ranker.Statistics statistics = computeStatistics(queries.values());
+        final List<QueryEvaluation> evaluations = evaluateQueries(queries, rels, statistics);
+
+        // Evaluate each weight vector in parallel, ranking again documents of each query
+        final RankingScore[][] scores = new RankingScore[layerWeights.size()][];
+        final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+        for (int i = 0; i < layerWeights.size(); ++i) {
+            final int index = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                final Ranker ranker = rankers.get(index);
+                final List<QueryEvaluation> weightEvaluations = Lists.newArrayList();
+                for (final QueryEvaluation evaluation : evaluations) {
+                    weightEvaluations.add(new QueryEvaluation(evaluation, ranker));
+                }
+                ForkJoinTask.invokeAll(weightEvaluations);
+                scores[index] = aggregateScores(weightEvaluations);
+            }));
+        }
+        invoke(tasks);
+
+        // Write aggregate scores for all weight vectors and settings
+        writeSweepScores(resultPath, layerWeights, scores);
+
+        // Report the best weight vector and setting
+        int bestWeights = 0;
+        int bestSetting = 0;
+        final Comparator<RankingScore> comparator = RankingScore.comparator(this.sortMeasure,
+                true);
+        for (int i = 0; i < scores.length; ++i) {
+            for (int j = 0; j < this.settings.length; ++j) {
+                if (comparator.compare(scores[i][j], scores[bestWeights][bestSetting]) < 0) {
+                    bestWeights = i;
+                    bestSetting = j;
+                }
+            }
+        }
+        LOGGER.info("Evaluated {} weight vectors, best: {} {} {}", scores.length,
+                scores.length == 0 ? null : scores[bestWeights][bestSetting],
+                Joiner.on(',').join(this.settings[bestSetting]),
+                scores.length == 0 ? null : layerWeights.get(bestWeights));
+    }
+
     private Ranker.Statistics computeStatistics(final Iterable<TermVector> queryVectors)
             throws IOException {
 
@@ -167,16 +390,29 @@ final class Evaluation {
             throws IOException {
 
         final List<QueryEvaluation> evaluations = Lists.newArrayList();
-        final Map<Integer, String> docIDs = Maps.newConcurrentMap();
-        final Map<String, TermVector> docVectors = Maps.newConcurrentMap();
         for (final String queryID : Ordering.natural().sortedCopy(queries.keySet())) {
-            evaluations.add(new QueryEvaluation(queryID, queries.get(queryID), docIDs, docVectors,
+            evaluations.add(new QueryEvaluation(queryID, queries.get(queryID),
                     rels.get(queryID), statistics));
         }
-        Environment.run(evaluations);
+        invoke(evaluations);
         return evaluations;
     }
 
+    private static void invoke(final List<? extends ForkJoinTask<?>> tasks) {
+
+        // Run tasks in a dedicated pool with a thread for each core, where also the subtasks
+        // they fork (e.g., one for each setting of a query) are executed and stolen by idle
+        // threads, so that all cores are used even with few tasks
+        final ForkJoinPool pool = new ForkJoinPool(Environment.getCores());
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(tasks);
+            }));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private RankingScore[] aggregateScores(final List<QueryEvaluation> evaluations) {
 
         // Compute aggregated scores and sort them
@@ -196,8 +432,10 @@ final class Evaluation {
         // Allocate a map mapping each measure to a vector of p-values (one for each setting)
         final Map<Measure, float[]> pvalues = Maps.newHashMap();
 
-        // Populate the map iterating over considred measures
+        // Populate the map iterating over considered measures, testing each (measure, setting)
+        // pair in a separate parallel task
         final int numQueries = evaluations.size();
+        final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
         for (final Measure measure : REPORTED_MEASURES) {
 
             // First, for each setting extract a vector of measure values, one per query
@@ -214,55 +452,64 @@ final class Evaluation {
             final float[] pvals = new float[this.settings.length];
             final double[] baselineValues = settingsValues[this.baselineIndex];
             for (int i = 0; i < this.settings.length; ++i) {
-
-                // Count the number of values in baseline/setting vector that are NaN
-                int numNaNs = 0;
-                for (int j = 0; j < numQueries; ++j) {
-                    if (Double.isNaN(settingsValues[i][j]) || Double.isNaN(baselineValues[j])) {
-                        ++numNaNs;
-                    }
-                }
-
-                // Remove NaN values from baseline and setting vectors, if necessary
-                double[] baselineVector, settingVector;
-                if (numNaNs == 0) {
-                    baselineVector = baselineValues;
-                    settingVector = settingsValues[i];
-                } else {
-                    baselineVector = new double[numQueries - numNaNs];
-                    settingVector = new double[numQueries - numNaNs];
-                    for (int k = 0, j = 0; j < numQueries; ++j) {
-                        if (!Double.isNaN(settingsValues[i][j])
-                                && !Double.isNaN(baselineValues[j])) {
-                            baselineVector[k] = baselineValues[j];
-                            settingVector[k] = settingsValues[i][j];
-                            ++k;
-                        }
-                    }
-                }
-
-                // Perform the test and store the p-value
-                pvals[i] = Float.NaN;
-                try {
-                    if ("ttest".equalsIgnoreCase(this.statisticalTest)) {
-                        pvals[i] = (float) new TTest().pairedTTest(baselineVector, settingVector);
-                    } else if ("ar".equalsIgnoreCase(this.statisticalTest)) {
-                        pvals[i] = (float) ApproximateRandomization.test(1000, baselineVector,
-                                settingVector);
-                    }
-                } catch (Throwable ex) {
-                    LOGGER.error("Error running statistical test '" + statisticalTest + "'", ex);
-                }
+                final double[] settingValues = settingsValues[i];
+                final int index = i;
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    pvals[index] = statisticalTest(baselineValues, settingValues);
+                }));
             }
 
             // Store the p-value vector in the map
             pvalues.put(measure, pvals);
         }
+        invoke(tasks);
 
         // Return the p-value map
         return pvalues;
     }
 
+    private float statisticalTest(final double[] baselineValues, final double[] settingValues) {
+
+        // Count the number of values in baseline/setting vector that are NaN
+        final int numQueries = baselineValues.length;
+        int numNaNs = 0;
+        for (int j = 0; j < numQueries; ++j) {
+            if (Double.isNaN(settingValues[j]) || Double.isNaN(baselineValues[j])) {
+                ++numNaNs;
+            }
+        }
+
+        // Remove NaN values from baseline and setting vectors, if necessary
+        double[] baselineVector, settingVector;
+        if (numNaNs == 0) {
+            baselineVector = baselineValues;
+            settingVector = settingValues;
+        } else {
+            baselineVector = new double[numQueries - numNaNs];
+            settingVector = new double[numQueries - numNaNs];
+            for (int k = 0, j = 0; j < numQueries; ++j) {
+                if (!Double.isNaN(settingValues[j]) && !Double.isNaN(baselineValues[j])) {
+                    baselineVector[k] = baselineValues[j];
+                    settingVector[k] = settingValues[j];
+                    ++k;
+                }
+            }
+        }
+
+        // Perform the test and return the p-value
+        try {
+            if ("ttest".equalsIgnoreCase(this.statisticalTest)) {
+                return (float) new TTest().pairedTTest(baselineVector, settingVector);
+            } else if ("ar".equalsIgnoreCase(this.statisticalTest)) {
+                return (float) ApproximateRandomization.test(this.statisticalTestIterations,
+                        this.statisticalTestMaxExceedances, 0L, baselineVector, settingVector);
+            }
+        } catch (final Throwable ex) {
+            LOGGER.error("Error running statistical test '" + this.statisticalTest + "'", ex);
+        }
+        return Float.NaN;
+    }
+
     private void writeAggregateScores(final Path resultPath, final RankingScore[] scores,
             final Map<Measure, float[]> pvalues) throws IOException {
 
@@ -287,6 +534,32 @@ final class Evaluation {
         }
     }
 
+    private void writeSweepScores(final Path resultPath,
+            final List<Map<String, Float>> layerWeights, final RankingScore[][] scores)
+            throws IOException {
+
+        try (Writer writer = IO.utf8Writer(IO.buffer(IO.write(resultPath.resolve("sweep.csv")
+                .toAbsolutePath().toString())))) {
+            writer.append("weights;setting");
+            for (final Measure measure : REPORTED_MEASURES) {
+                writer.append(";").append(measure.toString());
+            }
+            writer.append("\n");
+            for (int i = 0; i < scores.length; ++i) {
+                final String weights = Joiner.on(' ').withKeyValueSeparator(":").join(
+                        layerWeights.get(i));
+                for (int j = 0; j < this.settings.length; ++j) {
+                    writer.append(weights).append(";");
+                    writer.append(Joiner.on(",").join(this.settings[j]));
+                    for (final Measure measure : REPORTED_MEASURES) {
+                        writer.append(";").append(Double.toString(scores[i][j].get(measure)));
+                    }
+                    writer.append("\n");
+                }
+            }
+        }
+    }
+
     private void writeSettingScores(final Path resultPath,
             final Iterable<QueryEvaluation> evaluations, final int settingIndex)
             throws IOException {
@@ -447,24 +720,8 @@ final class Evaluation {
         return indexes;
     }
 
-    //    private TermVector toTermVector(final Document document) {
-    //        final TermVector.Builder builder = TermVector.builder();
-    //        for (final IndexableField field : document.getFields()) {
-    //            final String name = field.name();
-    //            if (!"id".equals(name)) {
-    //                final String value = field.stringValue();
-    //                try {
-    //                    builder.addTerm(name, value);
-    //                } catch (final Throwable ex) {
-    //                    // Ignore
-    //                }
-    //            }
-    //        }
-    //        final TermVector vector = builder.build();
-    //        return vector;
-    //    }
-
-    private final class QueryEvaluation implements Runnable {
+    @SuppressWarnings("serial")
+    private final class QueryEvaluation extends RecursiveAction {
 
         // Input
 
@@ -472,47 +729,94 @@ final class Evaluation {
 
         final TermVector queryVector;
 
-        final Map<Integer, String> cachedDocumentIDs;
-
-        final Map<String, TermVector> cachedDocumentVectors;
-
         final Map<String, Double> rels;
 
         final Ranker.Statistics statistics;
 
+        final Ranker ranker;
+
+        // Documents matched in rerank mode, sorted by ordinal, with a bitmask of matched layers
+        // and their partial scores, if supported by the ranker
+
+        String[] matchedIDs;
+
+        TermVector[] matchedVectors;
+
+        int[] matchedLayers;
+
+        @Nullable
+        Ranker.LayerScores layerScores;
+
         // Output
 
-        final Hit[][] hits; // a Hit[] for each setting
+        final Hit[][] hits; // a Hit[] for each setting, null if hits are not needed
 
         final RankingScore[] scores; // a RankingScore for each setting
 
         QueryEvaluation(final String queryID, final TermVector queryVector,
-                final Map<Integer, String> cachedDocumentIDs,
-                final Map<String, TermVector> cachedDocumentVectors,
                 final Map<String, Double> rels, final Ranker.Statistics statistics) {
 
             this.queryID = queryID;
             this.queryVector = queryVector;
-            this.cachedDocumentIDs = cachedDocumentIDs;
-            this.cachedDocumentVectors = cachedDocumentVectors;
             this.statistics = statistics;
             this.rels = rels;
+            this.ranker = Evaluation.this.ranker;
             this.hits = new Hit[Evaluation.this.settings.length][];
             this.scores = new RankingScore[Evaluation.this.settings.length];
         }
 
+        QueryEvaluation(final QueryEvaluation evaluation, final Ranker ranker) {
+
+            this.queryID = evaluation.queryID;
+            this.queryVector = evaluation.queryVector;
+            this.statistics = evaluation.statistics;
+            this.rels = evaluation.rels;
+            this.ranker = ranker;
+            this.matchedIDs = evaluation.matchedIDs;
+            this.matchedVectors = evaluation.matchedVectors;
+            this.matchedLayers = evaluation.matchedLayers;
+            this.layerScores = evaluation.layerScores;
+            this.hits = null;
+            this.scores = new RankingScore[Evaluation.this.settings.length];
+        }
+
         @Override
-        public void run() {
+        protected void compute() {
 
             try {
-                // Identify matching documents using boolean model (delegated to Lucene, OR semantics)
-                final Multimap<String, String> matches = matchDocuments();
+                final boolean rankNative = Evaluation.this.scoringSearcher != null;
+                if (!rankNative && this.matchedIDs == null) {
+                    // Identify matching documents using boolean model (delegated to Lucene, OR
+                    // semantics), unless already done for another evaluation of this query
+                    final FixedBitSet[] matches = matchDocuments();
+
+                    // Load matched documents and compute partial scores shared by all settings
+                    final BinaryDocValues vectorValues = !Evaluation.this.decodeVectors ? null
+                            : MultiDocValues.getBinaryValues(
+                                    Evaluation.this.searcher.getIndexReader(), "vector");
+                    prepareDocuments(matches, vectorValues);
+                }
 
-                // Compute and evaluate rankings for each setting
-                rankDocuments(matches);
+                // Compute and evaluate the ranking of each setting in a separate subtask, either
+                // within Lucene (native mode) or reranking matched documents
+                final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+                for (int i = 0; i < Evaluation.this.settings.length; ++i) {
+                    final int index = i;
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        if (rankNative) {
+                            rankDocumentsNative(index);
+                        } else {
+                            rankDocuments(index);
+                        }
+                        return null;
+                    }));
+                }
+                invokeAll(tasks);
 
-                // Log number of hits and best ranking, if enabled
-                logCompletion();
+                // Log number of hits and best ranking, if enabled and hits were kept
+                if (this.hits != null) {
+                    logCompletion();
+                }
 
             } catch (final Throwable ex) {
                 // Wrap and propagate
@@ -520,113 +824,220 @@ final class Evaluation {
             }
         }
 
-        private Multimap<String, String> matchDocuments() throws IOException, ParseException {
-
-            // Evaluate a Lucene query for each layer and populate a multimap with matched document IDs
-            final Multimap<String, String> matches = HashMultimap.create();
-            for (final String layer : Evaluation.this.layers) {
-
-                // Compose the query string
-                final StringBuilder builder = new StringBuilder();
-                String separator = "";
-                for (final Term term : this.queryVector.getTerms(layer)) {
-                    builder.append(separator);
-                    builder.append(layer).append(":\"").append(term.getValue()).append("\"");
-                    separator = " OR ";
+        private FixedBitSet[] matchDocuments() throws IOException {
+
+            // Evaluate a Lucene query for each layer and collect all matched documents in a
+            // per-layer bitset, indexed by doc ordinal (no scoring and no limit on the number of
+            // matches)
+            final List<String> layers = Evaluation.this.layers;
+            final int maxDoc = Evaluation.this.searcher.getIndexReader().maxDoc();
+            final FixedBitSet[] matches = new FixedBitSet[layers.size()];
+            for (int l = 0; l < layers.size(); ++l) {
+
+                // Compose one or more disjunctive queries of term clauses (a query for each chunk
+                // of terms, if there are more terms than allowed clauses), skipping empty layers
+                final String layer = layers.get(l);
+                final List<Term> terms = this.queryVector.getTerms(layer);
+                final BitSetCollector collector = new BitSetCollector(maxDoc);
+                for (final List<Term> chunk : Lists.partition(terms, Evaluation.this.maxClauses)) {
+                    final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                    for (final Term term : chunk) {
+                        builder.add(new TermQuery(new org.apache.lucene.index.Term(layer, term
+                                .getValue())), Occur.SHOULD);
+                    }
+                    Evaluation.this.searcher.search(builder.build(), collector);
                 }
-                final String queryString = builder.toString();
+                matches[l] = collector.getBits();
+                LOGGER.debug("{} results obtained for layer {}", matches[l].cardinality(), layer);
+            }
+            return matches;
+        }
 
-                // Skip evaluation if the query is empty
-                if (queryString.isEmpty()) {
-                    continue;
+        private TermVector resolveDocumentVector(final int doc,
+                @Nullable final BinaryDocValues vectorValues) {
+
+            // Decode the term vector of the document the first time it is needed. Concurrent
+            // decoding of the same vector is harmless, as term vectors are immutable. Encoded
+            // vectors are never empty, so no bytes means the document was indexed without them
+            TermVector vector = Evaluation.this.documentVectors[doc];
+            if (vector == null && vectorValues != null) {
+                final BytesRef bytes = vectorValues.get(doc);
+                if (bytes.length == 0) {
+                    throw new IllegalStateException("No vector in index for document "
+                            + Evaluation.this.documentIDs[doc] + " (reindex)");
                 }
+                vector = TermVector.fromBytes(bytes.bytes, bytes.offset, bytes.length);
+                Evaluation.this.documentVectors[doc] = vector;
+            }
+            return vector;
+        }
 
-                // Evaluate the query
-                final QueryParser parser = new QueryParser("default-field", new KeywordAnalyzer());
-                final Query query = parser.parse(queryString);
-                final TopDocs results = Evaluation.this.searcher.search(query, 1000);
-                LOGGER.debug("{} results obtained from query {}", results.scoreDocs.length,
-                        queryString);
-
-                // Populate the matches multimap. This requires mapping the numerical doc ID to
-                // the corresponding String one. We also retrieve the associated Lucene document
-                // and cache the document term vector for later reuse.
-                for (final ScoreDoc scoreDoc : results.scoreDocs) {
-                    String docID;
-                    synchronized (this.cachedDocumentIDs) {
-                        docID = this.cachedDocumentIDs.get(scoreDoc.doc);
-                        if (docID == null) {
-                            final Document doc = Evaluation.this.searcher.doc(scoreDoc.doc,
-                                    ImmutableSet.of("id"));
-                            docID = doc.get("id");
-                            final TermVector docVector = Evaluation.this.documentVectors
-                                    .get(docID);
-                            // final Document doc = Evaluation.this.searcher.doc(scoreDoc.doc);
-                            // docID = doc.get("id");
-                            // final TermVector docVector = toTermVector(doc);
-                            this.cachedDocumentIDs.put(scoreDoc.doc, docID);
-                            this.cachedDocumentVectors.put(docID, docVector);
-                        }
-                    }
-                    matches.put(layer, docID);
+        private void prepareDocuments(final FixedBitSet[] matches,
+                @Nullable final BinaryDocValues vectorValues) throws IOException {
+
+            // Resolve IDs and term vectors of documents matching any layer, once for all settings
+            final int maxDoc = Evaluation.this.searcher.getIndexReader().maxDoc();
+            final FixedBitSet candidates = new FixedBitSet(maxDoc);
+            for (final FixedBitSet layerMatches : matches) {
+                candidates.or(layerMatches);
+            }
+            final int numMatches = candidates.cardinality();
+            this.matchedIDs = new String[numMatches];
+            this.matchedVectors = new TermVector[numMatches];
+            this.matchedLayers = new int[numMatches];
+            for (int j = 0, doc = candidates.nextSetBit(0); j < numMatches; ++j) {
+                this.matchedIDs[j] = Evaluation.this.documentIDs[doc];
+                this.matchedVectors[j] = resolveDocumentVector(doc, vectorValues);
+                for (int l = 0; l < matches.length; ++l) {
+                    this.matchedLayers[j] |= matches[l].get(doc) ? 1 << l : 0;
                 }
+                doc = doc + 1 < maxDoc ? candidates.nextSetBit(doc + 1)
+                        : DocIdSetIterator.NO_MORE_DOCS;
             }
-            return matches;
+
+            // Compute partial scores once for all settings, if supported by the ranker
+            // (otherwise, documents are ranked again for each setting)
+            this.layerScores = numMatches == 0 ? null : this.ranker.rankLayers(
+                    this.queryVector.project(Evaluation.this.layers), this.matchedVectors,
+                    this.statistics);
         }
 
-        private void rankDocuments(final Multimap<String, String> matches) {
+        private void rankDocuments(final int settingIndex) {
+
+            // Retrieve the current setting
+            final String[] setting = Evaluation.this.settings[settingIndex];
+            final TermVector settingVector = this.queryVector.project(Arrays.asList(setting));
 
-            // Compute and evaluate a ranking for each considered setting
-            for (int i = 0; i < Evaluation.this.settings.length; ++i) {
+            // Count the documents matching any layer of this setting
+            int settingLayers = 0;
+            for (final String layer : setting) {
+                settingLayers |= 1 << Evaluation.this.layers.indexOf(layer);
+            }
+            int numCandidates = 0;
+            for (final int layers : this.matchedLayers) {
+                numCandidates += (layers & settingLayers) != 0 ? 1 : 0;
+            }
 
-                // Retrieve the current setting
-                final String[] setting = Evaluation.this.settings[i];
+            if (numCandidates == 0) {
+                // Update ranking scores by comparing an empty answer with gold relevances
+                if (this.hits != null) {
+                    this.hits[settingIndex] = new Hit[0];
+                }
+                this.scores[settingIndex] = RankingScore.evaluator(10) //
+                        .add(ImmutableList.of(), this.rels).get();
+
+            } else {
+                // Select the matched documents that are candidates for this setting, taking
+                // their scores from the combination of partial scores, if available
+                final float[] matchedScores = this.layerScores == null ? null : this.ranker
+                        .combine(this.layerScores, settingVector);
+                final String[] ids = new String[numCandidates];
+                final TermVector[] vectors = new TermVector[numCandidates];
+                float[] scores = matchedScores == null ? null : new float[numCandidates];
+                for (int j = 0, k = 0; k < this.matchedLayers.length; ++k) {
+                    if ((this.matchedLayers[k] & settingLayers) != 0) {
+                        ids[j] = this.matchedIDs[k];
+                        vectors[j] = this.matchedVectors[k];
+                        if (scores != null) {
+                            scores[j] = matchedScores[k];
+                        }
+                        ++j;
+                    }
+                }
 
-                // Obtain all the IDs of matching document for this setting
-                final Set<String> documentIDs = Sets.newLinkedHashSet();
-                for (final String layer : setting) {
-                    documentIDs.addAll(matches.get(layer));
+                // Otherwise, apply the ranker to compute a score for each candidate document
+                if (scores == null) {
+                    scores = this.ranker.rank(settingVector, vectors, this.statistics);
                 }
 
-                if (documentIDs.isEmpty()) {
-                    // Update ranking scores by comparing an empty answer with gold relevances
-                    this.hits[i] = new Hit[0];
-                    this.scores[i] = RankingScore.evaluator(10) //
-                            .add(ImmutableList.of(), this.rels).get();
+                // Sort and evaluate the obtained ranking
+                evaluateRanking(settingIndex, ids, scores);
+            }
+        }
 
-                } else {
-                    // Apply the ranker to compute a score for each matched document
-                    final String[] ids = documentIDs.toArray(new String[documentIDs.size()]);
-                    final TermVector[] vectors = new TermVector[ids.length];
-                    for (int j = 0; j < ids.length; ++j) {
-                        vectors[j] = this.cachedDocumentVectors.get(ids[j]);
+        private void rankDocumentsNative(final int settingIndex) throws IOException {
+
+            // Retrieve the current setting and build the corresponding query
+            final String[] setting = Evaluation.this.settings[settingIndex];
+            final Query query = Evaluation.this.ranker.createQuery(
+                    this.queryVector.project(Arrays.asList(setting)), this.statistics,
+                    Evaluation.this.maxClauses);
+
+            // Retrieve the top-k documents, if enabled, skipping documents that cannot make it
+            if (Evaluation.this.maxScoreSearcher != null) {
+                final MaxScoreSearcher.Hits hits = Evaluation.this.maxScoreSearcher.search(
+                        query, Evaluation.this.topK,
+                        (final int doc) -> Evaluation.this.documentIDs[doc]);
+                evaluateRanking(settingIndex, hits.ids, hits.scores);
+                return;
+            }
+
+            // Collect the ordinals and scores of all matching documents
+            final ScoreCollector collector = new ScoreCollector();
+            Evaluation.this.scoringSearcher.search(query, collector);
+
+            if (collector.size() == 0) {
+                // Update ranking scores by comparing an empty answer with gold relevances
+                this.hits[settingIndex] = new Hit[0];
+                this.scores[settingIndex] = RankingScore.evaluator(10) //
+                        .add(ImmutableList.of(), this.rels).get();
+
+            } else {
+                // Map ordinals to document IDs (only for documents that may be ranked)
+                final int[] docs = collector.getDocs();
+                final float[] scores = collector.getScores();
+                final String[] ids = new String[scores.length];
+                for (int j = 0; j < scores.length; ++j) {
+                    if (scores[j] > 0.0f) {
+                        ids[j] = Evaluation.this.documentIDs[docs[j]];
                     }
-                    final float[] scores = Evaluation.this.ranker.rank(
-                            this.queryVector.project(Arrays.asList(setting)), vectors,
-                            this.statistics);
-
-                    // Build and store a sorted list of Hit objects, removing documents scored 0
-                    final List<Hit> hitList = Lists.newArrayList();
-                    for (int j = 0; j < ids.length; ++j) {
-                        if (scores[j] > 0.0f) {
-                            hitList.add(new Hit(ids[j], scores[j]));
+                }
+
+                // Sort and evaluate the obtained ranking
+                evaluateRanking(settingIndex, ids, scores);
+            }
+        }
+
+        private void evaluateRanking(final int settingIndex, final String[] ids,
+                final float[] scores) {
+
+            // If hits are not needed, place relevant documents at their positions in the ranking,
+            // counting the documents ranked before them, and evaluate it without sorting
+            if (this.hits == null) {
+                final String[] idsRanked = new String[ids.length];
+                for (int j = 0; j < ids.length; ++j) {
+                    if (scores[j] > 0.0f && this.rels.containsKey(ids[j])) {
+                        int rank = 0;
+                        for (int k = 0; k < ids.length; ++k) {
+                            rank += scores[k] > scores[j] || scores[k] == scores[j]
+                                    && ids[k].compareTo(ids[j]) < 0 ? 1 : 0;
                         }
+                        idsRanked[rank] = ids[j];
                     }
-                    final Hit[] hits = hitList.toArray(new Hit[hitList.size()]);
-                    Arrays.sort(hits);
-                    this.hits[i] = hits;
-
-                    // Update ranking scores based on the obtained Hit list
-                    final String[] idsSorted = new String[ids.length];
-                    final Map<String, Double> scoresMap = Maps.newHashMap();
-                    for (int j = 0; j < hits.length; ++j) {
-                        idsSorted[j] = hits[j].documentID;
-                        scoresMap.put(hits[j].documentID, (double) hits[j].score);
-                    }
-                    this.scores[i] = RankingScore.evaluator(10)
-                            .add(Arrays.asList(idsSorted), this.rels).get();
                 }
+                this.scores[settingIndex] = RankingScore.evaluator(10)
+                        .add(Arrays.asList(idsRanked), this.rels).get();
+                return;
             }
+
+            // Build and store a sorted list of Hit objects, removing documents scored 0
+            final List<Hit> hitList = Lists.newArrayList();
+            for (int j = 0; j < ids.length; ++j) {
+                if (scores[j] > 0.0f) {
+                    hitList.add(new Hit(ids[j], scores[j]));
+                }
+            }
+            final Hit[] hits = hitList.toArray(new Hit[hitList.size()]);
+            Arrays.sort(hits);
+            this.hits[settingIndex] = hits;
+
+            // Update ranking scores based on the obtained Hit list
+            final String[] idsSorted = new String[ids.length];
+            for (int j = 0; j < hits.length; ++j) {
+                idsSorted[j] = hits[j].documentID;
+            }
+            this.scores[settingIndex] = RankingScore.evaluator(10)
+                    .add(Arrays.asList(idsSorted), this.rels).get();
         }
 
         private void logCompletion() {
@@ -650,6 +1061,94 @@ final class Evaluation {
 
     }
 
+    private static final class BitSetCollector extends SimpleCollector {
+
+        private final FixedBitSet bits;
+
+        private int docBase;
+
+        BitSetCollector(final int maxDoc) {
+            this.bits = new FixedBitSet(maxDoc);
+        }
+
+        FixedBitSet getBits() {
+            return this.bits;
+        }
+
+        @Override
+        protected void doSetNextReader(final LeafReaderContext context) throws IOException {
+            this.docBase = context.docBase;
+        }
+
+        @Override
+        public void collect(final int doc) throws IOException {
+            this.bits.set(this.docBase + doc);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+
+    }
+
+    private static final class ScoreCollector extends SimpleCollector {
+
+        private int[] docs;
+
+        private float[] scores;
+
+        private int size;
+
+        private int docBase;
+
+        private Scorer scorer;
+
+        ScoreCollector() {
+            this.docs = new int[64];
+            this.scores = new float[64];
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        int[] getDocs() {
+            return Arrays.copyOf(this.docs, this.size);
+        }
+
+        float[] getScores() {
+            return Arrays.copyOf(this.scores, this.size);
+        }
+
+        @Override
+        protected void doSetNextReader(final LeafReaderContext context) throws IOException {
+            this.docBase = context.docBase;
+        }
+
+        @Override
+        public void setScorer(final Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(final int doc) throws IOException {
+            if (this.size == this.docs.length) {
+                this.docs = Arrays.copyOf(this.docs, this.size * 2);
+                this.scores = Arrays.copyOf(this.scores, this.size * 2);
+            }
+            this.docs[this.size] = this.docBase + doc;
+            this.scores[this.size] = this.scorer.score();
+            ++this.size;
+        }
+
+        @Override
+        public boolean needsScores() {
+            return true;
+        }
+
+    }
+
     private static final class Hit implements Comparable<Hit> {
 
         final String documentID;
@@ -15,36 +15,63 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.TextField;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.CollectionStatistics;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermStatistics;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
@@ -56,11 +83,11 @@ import org.slf4j.LoggerFactory;
 import ixa.kaflib.KAFDocument;
 
 import eu.fbk.ke4ir.util.CommandLine;
+import eu.fbk.ke4ir.util.ParallelProcessor;
 import eu.fbk.ke4ir.util.RankingScore;
 import eu.fbk.rdfpro.AbstractRDFHandlerWrapper;
 import eu.fbk.rdfpro.RDFHandlers;
 import eu.fbk.rdfpro.RDFSources;
-import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.IO;
 import eu.fbk.rdfpro.util.QuadModel;
 import eu.fbk.rdfpro.util.Statements;
@@ -69,6 +96,19 @@ public class KE4IR {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KE4IR.class);
 
+    private static final int INDEX_FORMAT = 2; // increment when changing indexed fields
+
+    private static final FieldType TERM_FIELD_TYPE;
+
+    static {
+        TERM_FIELD_TYPE = new FieldType();
+        TERM_FIELD_TYPE.setTokenized(true);
+        TERM_FIELD_TYPE.setStored(false);
+        TERM_FIELD_TYPE.setOmitNorms(true);
+        TERM_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        TERM_FIELD_TYPE.freeze();
+    }
+
     private static final Pattern NAF_PATTERN = Pattern.compile("\\.naf(\\.(gz|bz2|xz|7z))?$");
 
     private static final Pattern RDF_PATTERN = Pattern
@@ -96,14 +136,44 @@ public class KE4IR {
 
     private final Path pathResults;
 
+    private final int numWorkers;
+
+    private final int workerQueueSize;
+
+    private final double workerMaxHeapUsage;
+
+    private final boolean indexIncremental;
+
+    private final double indexRAMBuffer;
+
+    private final String indexMergePolicy;
+
+    private final int indexMaxSegments;
+
     private final List<String> layers;
 
+    private final int searchMaxClauses;
+
+    private final String searchMode;
+
+    private final int searchTopK;
+
+    private final double sweepStep;
+
+    private final int sweepSamples;
+
+    private final long sweepSeed;
+
     private final Set<String> evalBaseline;
 
     private final RankingScore.Measure evalSortMeasure;
 
     private final String evalStatisticalTest;
 
+    private final int evalStatisticalTestIterations;
+
+    private final int evalStatisticalTestMaxExceedances;
+
     private final Enricher enricher;
 
     private final Analyzer analyzer;
@@ -130,6 +200,8 @@ public class KE4IR {
                             "analyzes queries only (NAF + RDF enriched)")
                     .withOption("i", "index", "indexes document terms in Lucene")
                     .withOption("s", "search", "evaluates queries over Lucene index")
+                    .withOption("w", "sweep",
+                            "evaluates queries over Lucene index for a sweep of layer weights")
                     .withHeader("supports all the operations involved in the evaluation of " //
                             + "semantic information retrieval: enrichment, analysis, " //
                             + "indexing, search").parse(args);
@@ -143,6 +215,7 @@ public class KE4IR {
             boolean analyzeQueries = cmd.hasOption("analyze-queries") || cmd.hasOption("a");
             boolean index = cmd.hasOption("i");
             boolean search = cmd.hasOption("s");
+            boolean sweep = cmd.hasOption("w");
 
             // Abort if properties file does not exist
             if (!Files.exists(propertiesPath)) {
@@ -168,14 +241,7 @@ public class KE4IR {
                     pr + "analyzequeries", "false"));
             index |= Boolean.parseBoolean(properties.getProperty(pr + "index", "false"));
             search |= Boolean.parseBoolean(properties.getProperty(pr + "search", "false"));
-
-            //            final List<String> data = Lists.newArrayList();
-            //            for (int j = 0; j <= 100; j += 1) {
-            //                final double w = j * 0.01;
-            //                final String ws = "textual:" + (1 - w) + " uri:" + w / 4 + " type:" + w / 4
-            //                        + " frame:" + w / 4 + " time:" + w / 4;
-            //                System.out.println("\n\n\n**** " + ws + " ****\n\n");
-            //                properties.setProperty("ke4ir.ranker.tfidf.weights", ws);
+            sweep |= Boolean.parseBoolean(properties.getProperty(pr + "sweep", "false"));
 
             // Initialize the KE4IR main object
             final KE4IR ke4ir = new KE4IR(propertiesPath.getParent(), properties, "ke4ir.");
@@ -200,15 +266,9 @@ public class KE4IR {
             if (search) {
                 ke4ir.search();
             }
-
-            //                final List<String> lines = Files.readAllLines(propertiesPath.getParent().resolve(
-            //                        "results/aggregates.csv"));
-            //                for (int i = 1; i < lines.size(); ++i) {
-            //                    data.add(String.format("%.2f", w) + ";" + lines.get(i));
-            //                }
-            //            }
-            //            Files.write(propertiesPath.getParent().resolve("results/experiment.csv"), data,
-            //                    Charsets.UTF_8);
+            if (sweep) {
+                ke4ir.sweep();
+            }
 
         } catch (final Throwable ex) {
             // Display error information and terminate
@@ -246,10 +306,44 @@ public class KE4IR {
         // Retrieve results path
         this.pathResults = root.resolve(properties.getProperty(pr + "results", "results"));
 
+        // Retrieve parallel processing settings (0 = use defaults)
+        this.numWorkers = Integer.parseInt(properties.getProperty(pr + "workers", "0").trim());
+        this.workerQueueSize = Integer.parseInt(properties.getProperty( //
+                pr + "workers.queue", "0").trim());
+        this.workerMaxHeapUsage = Double.parseDouble(properties.getProperty( //
+                pr + "workers.heap", "0.8").trim());
+
+        // Retrieve index writer settings (incremental mode, RAM buffer in MB, merge policy,
+        // forced merge segments)
+        this.indexIncremental = Boolean.parseBoolean(properties.getProperty( //
+                pr + "index.incremental", "false").trim());
+        this.indexRAMBuffer = Double.parseDouble(properties.getProperty(pr + "index.rambuffer",
+                Double.toString(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB)).trim());
+        this.indexMergePolicy = properties.getProperty(pr + "index.mergepolicy", "tiered")
+                .trim().toLowerCase();
+        this.indexMaxSegments = Integer.parseInt(properties.getProperty( //
+                pr + "index.forcemerge", "0").trim());
+
         // Retrieve layers and associated fields
         this.layers = Splitter.on(Pattern.compile("[\\s,;]+")).trimResults().omitEmptyStrings()
                 .splitToList(properties.getProperty(pr + "layers"));
 
+        // Retrieve search settings
+        this.searchMaxClauses = Integer.parseInt(properties.getProperty(pr + "search.maxclauses",
+                Integer.toString(BooleanQuery.getMaxClauseCount())).trim());
+        this.searchMode = properties.getProperty(pr + "search.mode", "rerank").trim()
+                .toLowerCase();
+        this.searchTopK = Integer.parseInt(properties.getProperty(pr + "search.topk", "0")
+                .trim());
+
+        // Retrieve sweep settings (grid step for layer weights, or number of random weight
+        // vectors to sample if greater than 0, and sampling seed)
+        this.sweepStep = Double.parseDouble(properties.getProperty(pr + "sweep.step", "0.1")
+                .trim());
+        this.sweepSamples = Integer.parseInt(properties.getProperty(pr + "sweep.samples", "0")
+                .trim());
+        this.sweepSeed = Long.parseLong(properties.getProperty(pr + "sweep.seed", "0").trim());
+
         // Retrieve evaluation settings
         this.evalSortMeasure = RankingScore.Measure.create(properties.getProperty(
                 pr + "results.sort", "map").trim());
@@ -257,6 +351,10 @@ public class KE4IR {
                 "textual").split("\\s+"));
         this.evalStatisticalTest = properties.getProperty(pr + "results.test", "ttest").trim()
                 .toLowerCase();
+        this.evalStatisticalTestIterations = Integer.parseInt(properties.getProperty(
+                pr + "results.test.iterations", "1000").trim());
+        this.evalStatisticalTestMaxExceedances = Integer.parseInt(properties.getProperty(
+                pr + "results.test.maxexceedances", "0").trim());
 
         // Build the enricher
         this.enricher = Enricher.create(root, properties, "ke4ir.enricher.");
@@ -304,7 +402,7 @@ public class KE4IR {
                 writeTriples(outputPath, model);
                 inTriples.addAndGet(sizeBefore);
                 outTriples.addAndGet(model.size());
-                LOGGER.info("Enriched {} - {} triples obtained from {} triples", path,
+                LOGGER.debug("Enriched {} - {} triples obtained from {} triples", path,
                         model.size(), sizeBefore);
             } catch (final Throwable ex) {
                 Throwables.propagate(ex);
@@ -364,7 +462,7 @@ public class KE4IR {
                     synchronized (writer) {
                         TermVector.write(writer, ImmutableMap.of(id, vector));
                     }
-                    LOGGER.info("Analyzed {} - {} terms from {} tokens, {} triples", path,
+                    LOGGER.debug("Analyzed {} - {} terms from {} tokens, {} triples", path,
                             vector.size(), document.getTerms().size(), model.size());
                 } catch (final Throwable ex) {
                     Throwables.propagate(ex);
@@ -380,49 +478,173 @@ public class KE4IR {
         final long ts = System.currentTimeMillis();
         LOGGER.info("=== Building Lucene index ===");
 
-        // Create index directory if necessary and wipe out existing directory contents
-        initDir(this.pathIndex);
-
-        // TODO: avoid loading everything into RAM; parallelize
-        Map<String, TermVector> vectors = Maps.newHashMap();
-        try (Reader reader = IO.utf8Reader(IO.buffer(IO.read(this.pathDocsTerms.toAbsolutePath()
-                .toString())))) {
-            vectors = TermVector.read(reader);
+        // In incremental mode, read the content hashes of documents already indexed (if any);
+        // otherwise create index directory if necessary and wipe out existing directory contents
+        final Map<String, String> oldHashes = new ConcurrentHashMap<>();
+        if (this.indexIncremental) {
+            Files.createDirectories(this.pathIndex);
+            oldHashes.putAll(readHashes(this.pathIndex));
+            LOGGER.info("Incremental mode: {} documents already indexed", oldHashes.size());
+        } else {
+            initDir(this.pathIndex);
         }
 
         final FSDirectory indexDir = FSDirectory.open(this.pathIndex);
         final IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer());
         config.setSimilarity(FakeSimilarity.INSTANCE);
+        config.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        config.setCommitOnClose(true);
+        config.setRAMBufferSizeMB(this.indexRAMBuffer);
+        config.setMergePolicy(createMergePolicy(this.indexMergePolicy));
+
+        // Stream document vectors to indexing threads, all sharing the same IndexWriter. Only
+        // documents that are new or whose hash changed are (re)indexed
+        final AtomicLong numTerms = new AtomicLong(0L);
+        final AtomicLong numAdded = new AtomicLong(0L);
+        final AtomicLong numUpdated = new AtomicLong(0L);
+        final long numDocs;
+        try (Reader reader = IO.utf8Reader(IO.buffer(IO.read(this.pathDocsTerms.toAbsolutePath()
+                .toString()))); IndexWriter writer = new IndexWriter(indexDir, config)) {
+            numDocs = ParallelProcessor.builder().withName("documents")
+                    .withWorkers(this.numWorkers).withQueueSize(this.workerQueueSize)
+                    .withMaxHeapUsage(this.workerMaxHeapUsage).build()
+                    .process(() -> TermVector.iterate(reader), //
+                            (final Map.Entry<String, TermVector> entry) -> {
+                                final String id = entry.getKey();
+                                final TermVector vector = entry.getValue();
+                                final String hash = hash(vector);
+                                final String oldHash = oldHashes.remove(id);
+                                if (hash.equals(oldHash)) {
+                                    LOGGER.debug("Skipping {} - unchanged", id);
+                                    return;
+                                }
+                                LOGGER.debug("Indexing {} - {} terms", id, vector.size());
+                                try {
+                                    final Document doc = createDocument(id, hash, vector);
+                                    if (oldHash == null) {
+                                        writer.addDocument(doc);
+                                        numAdded.incrementAndGet();
+                                    } else {
+                                        writer.updateDocument(new org.apache.lucene.index.Term(
+                                                "id", id), doc);
+                                        numUpdated.incrementAndGet();
+                                    }
+                                } catch (final IOException ex) {
+                                    throw Throwables.propagate(ex);
+                                }
+                                numTerms.addAndGet(vector.size());
+                            });
+
+            // Documents not found in the terms file have been removed from the collection
+            for (final String id : oldHashes.keySet()) {
+                LOGGER.debug("Deleting {}", id);
+                writer.deleteDocuments(new org.apache.lucene.index.Term("id", id));
+            }
 
-        int numTerms = 0;
-        try (IndexWriter writer = new IndexWriter(indexDir, config)) {
-            for (final Map.Entry<String, TermVector> entry : vectors.entrySet()) {
-
-                final String docID = entry.getKey();
-                final TermVector docVector = entry.getValue();
+            // Deleted documents still count in the term and collection statistics used for
+            // ranking, so they are expunged in order to get the same scores of a full rebuild
+            if (this.indexMaxSegments > 0) {
+                LOGGER.info("Merging index down to {} segment(s)", this.indexMaxSegments);
+                writer.forceMerge(this.indexMaxSegments);
+            } else if (numUpdated.get() > 0 || !oldHashes.isEmpty()) {
+                LOGGER.info("Expunging {} updated and {} deleted documents", numUpdated,
+                        oldHashes.size());
+                writer.forceMergeDeletes();
+            }
+        }
 
-                LOGGER.info("Indexing {} - {} terms", docID, entry.getValue().size());
+        final long elapsed = Math.max(1L, System.currentTimeMillis() - ts);
+        LOGGER.info("Done in {} ms ({} documents, {} added, {} updated, {} deleted, {} terms "
+                + "added, {} documents/s)", elapsed, numDocs, numAdded, numUpdated,
+                oldHashes.size(), numTerms, String.format("%.2f", numDocs * 1000.0 / elapsed));
+    }
 
-                final Document doc = new Document();
-                doc.add(new TextField("id", docID, Store.YES));
-                for (final Term term : docVector.getTerms()) {
-                    for (int i = 0; i < term.getFrequency(); ++i) {
-                        doc.add(new TextField(term.getField(), term.getValue(), Store.YES));
+    private static Map<String, String> readHashes(final Path path) throws IOException {
+        final Map<String, String> hashes = Maps.newHashMap();
+        if (DirectoryReader.indexExists(FSDirectory.open(path))) {
+            try (IndexReader reader = DirectoryReader.open(FSDirectory.open(path))) {
+                final Bits liveDocs = MultiFields.getLiveDocs(reader);
+                final Set<String> fields = ImmutableSet.of("id", "hash");
+                for (int i = 0; i < reader.maxDoc(); ++i) {
+                    if (liveDocs == null || liveDocs.get(i)) {
+                        final Document doc = reader.document(i, fields);
+                        hashes.put(doc.get("id"), Strings.nullToEmpty(doc.get("hash")));
                     }
-                    ++numTerms;
                 }
-                writer.addDocument(doc);
             }
         }
+        return hashes;
+    }
 
-        LOGGER.info("Done in {} ms ({} documents, {} terms added)", System.currentTimeMillis()
-                - ts, vectors.size(), numTerms);
+    private static String hash(final TermVector vector) {
+        // The index format version is hashed too, so that documents indexed in an older format
+        // are rewritten by the next incremental run
+        final Hasher hasher = Hashing.murmur3_128().newHasher().putInt(INDEX_FORMAT);
+        for (final Term term : vector.getTerms()) {
+            hasher.putString(term.getField(), Charsets.UTF_8).putChar('\t');
+            hasher.putString(term.getValue(), Charsets.UTF_8).putChar('\t');
+            hasher.putInt(term.getFrequency()).putDouble(term.getWeight());
+        }
+        return hasher.hash().toString();
+    }
+
+    private static Document createDocument(final String id, final String hash,
+            final TermVector vector) {
+
+        // Only the ID and content hash are stored; terms are fed pre-analyzed, one field per
+        // layer, while the ID and the whole vector are stored in doc values for use at search
+        // time
+        final Map<String, List<Term>> layerTerms = Maps.newHashMap();
+        for (final Term term : vector.getTerms()) {
+            List<Term> terms = layerTerms.get(term.getField());
+            if (terms == null) {
+                terms = Lists.newArrayList();
+                layerTerms.put(term.getField(), terms);
+            }
+            terms.add(term);
+        }
+        final Document doc = new Document();
+        doc.add(new StringField("id", id, Store.YES));
+        doc.add(new SortedDocValuesField("id", new BytesRef(id)));
+        doc.add(new StoredField("hash", hash));
+        doc.add(new BinaryDocValuesField("vector", new BytesRef(vector.toBytes())));
+        for (final Map.Entry<String, List<Term>> entry : layerTerms.entrySet()) {
+            doc.add(new Field(entry.getKey(), new TermTokenStream(entry.getValue()),
+                    TERM_FIELD_TYPE));
+        }
+        return doc;
+    }
+
+    private static MergePolicy createMergePolicy(final String name) {
+        switch (name) {
+        case "tiered":
+            return new TieredMergePolicy();
+        case "logbytesize":
+            return new LogByteSizeMergePolicy();
+        case "logdoc":
+            return new LogDocMergePolicy();
+        case "none":
+            return NoMergePolicy.INSTANCE;
+        default:
+            throw new IllegalArgumentException("Unknown merge policy '" + name
+                    + "' (supported: tiered, logbytesize, logdoc, none)");
+        }
     }
 
     public void search() throws IOException {
+        searchHelper(null, "=== Searching Lucene index ===");
+    }
+
+    public void sweep() throws IOException {
+        searchHelper(generateLayerWeights(this.layers, this.sweepStep, this.sweepSamples,
+                this.sweepSeed), "=== Sweeping layer weights over Lucene index ===");
+    }
+
+    private void searchHelper(@Nullable final List<Map<String, Float>> layerWeights,
+            final String message) throws IOException {
 
         final long ts = System.currentTimeMillis();
-        LOGGER.info("=== Searching Lucene index ===");
+        LOGGER.info(message);
 
         // Read relevances
         final Map<String, Map<String, Double>> rels = readRelevances(this.pathQueriesRelevances);
@@ -430,27 +652,117 @@ public class KE4IR {
         // Read queries
         final Map<String, TermVector> queries = readQueries(this.pathQueriesTerms);
 
-        // Read document vectors // TODO: this data should be loaded from the index on demand!
-        Map<String, TermVector> documents;
-        try (Reader reader = IO.utf8Reader(IO.buffer(IO.read(this.pathDocsTerms.toAbsolutePath()
-                .toString())))) {
-            documents = TermVector.read(reader);
-        }
-
         // Create results directory if necessary and wipe out existing content
         initDir(this.pathResults);
 
         try (IndexReader reader = DirectoryReader.open(FSDirectory.open(this.pathIndex))) {
+
+            // Document vectors are decoded from the index, unless some documents lack them
+            // (e.g., documents added by older versions and not rewritten since then)
+            Map<String, TermVector> documents = null;
+            final int numMissing = countDocumentsWithoutVectors(reader);
+            if (numMissing > 0) {
+                LOGGER.warn("{} documents without vectors in index (reindex to avoid this), "
+                        + "reading vectors from {}", numMissing, this.pathDocsTerms);
+                try (Reader termsReader = IO.utf8Reader(IO.buffer(IO.read(this.pathDocsTerms
+                        .toAbsolutePath().toString())))) {
+                    documents = TermVector.read(termsReader);
+                }
+            }
+
+            // Lucene limits the number of clauses of any BooleanQuery with a global setting
+            if (this.searchMaxClauses > BooleanQuery.getMaxClauseCount()) {
+                BooleanQuery.setMaxClauseCount(this.searchMaxClauses);
+            }
+
             final IndexSearcher searcher = new IndexSearcher(reader);
             searcher.setSimilarity(FakeSimilarity.INSTANCE);
-            new Evaluation(searcher, this.ranker, this.layers, this.evalBaseline,
-                    this.evalSortMeasure, this.evalStatisticalTest, documents).run(queries, rels,
-                    this.pathResults);
+            final Evaluation evaluation = new Evaluation(searcher, this.ranker, this.layers,
+                    this.evalBaseline, this.evalSortMeasure, this.evalStatisticalTest,
+                    this.evalStatisticalTestIterations, this.evalStatisticalTestMaxExceedances,
+                    this.searchMaxClauses, this.searchMode, this.searchTopK, documents);
+            if (layerWeights == null) {
+                evaluation.run(queries, rels, this.pathResults);
+            } else {
+                evaluation.sweep(queries, rels, layerWeights, this.pathResults);
+            }
         }
 
         LOGGER.info("Done in {} ms", System.currentTimeMillis() - ts);
     }
 
+    private static int countDocumentsWithoutVectors(final IndexReader reader)
+            throws IOException {
+        final Bits docsWithVectors = MultiDocValues.getDocsWithField(reader, "vector");
+        final Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int count = 0;
+        for (int doc = 0; doc < reader.maxDoc(); ++doc) {
+            if ((liveDocs == null || liveDocs.get(doc))
+                    && (docsWithVectors == null || !docsWithVectors.get(doc))) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    static List<Map<String, Float>> generateLayerWeights(final List<String> layers,
+            final double step, final int samples, final long seed) {
+
+        final List<Map<String, Float>> result = Lists.newArrayList();
+        final int numLayers = layers.size();
+
+        if (samples > 0) {
+            // Sample weight vectors uniformly among the ones summing to 1, by normalizing
+            // exponentially distributed values
+            final Random random = new Random(seed);
+            for (int i = 0; i < samples; ++i) {
+                final double[] values = new double[numLayers];
+                double sum = 0.0;
+                for (int j = 0; j < numLayers; ++j) {
+                    values[j] = -Math.log(1.0 - random.nextDouble());
+                    sum += values[j];
+                }
+                final Map<String, Float> weights = Maps.newLinkedHashMap();
+                for (int j = 0; j < numLayers; ++j) {
+                    weights.put(layers.get(j), (float) (values[j] / sum));
+                }
+                result.add(weights);
+            }
+
+        } else {
+            // Enumerate all the weight vectors summing to 1 whose weights are multiples of the
+            // configured step, counting steps of all layers but the last one in mixed radix
+            final int numSteps = (int) Math.round(1.0 / step);
+            Preconditions.checkArgument(numSteps > 0, "Invalid sweep step %s", step);
+            final int[] steps = new int[numLayers];
+            while (true) {
+                int lastSteps = numSteps;
+                for (int j = 0; j < numLayers - 1; ++j) {
+                    lastSteps -= steps[j];
+                }
+                if (lastSteps >= 0) {
+                    steps[numLayers - 1] = lastSteps;
+                    final Map<String, Float> weights = Maps.newLinkedHashMap();
+                    for (int j = 0; j < numLayers; ++j) {
+                        weights.put(layers.get(j), (float) steps[j] / numSteps);
+                    }
+                    result.add(weights);
+                }
+                int j = 0;
+                while (j < numLayers - 1 && steps[j] == numSteps) {
+                    steps[j++] = 0;
+                }
+                if (j >= numLayers - 1) {
+                    break;
+                }
+                ++steps[j];
+            }
+        }
+
+        LOGGER.info("{} layer weight vectors to evaluate", result.size());
+        return result;
+    }
+
     private static Map<String, Map<String, Double>> readRelevances(final Path path)
             throws IOException {
 
@@ -511,29 +823,25 @@ public class KE4IR {
         }
     }
 
-    private static void forEachFile(final Path path, final Pattern pattern,
+    private void forEachFile(final Path path, final Pattern pattern,
             final Consumer<Path> consumer) {
 
-        final FluentIterable<File> files = com.google.common.io.Files.fileTreeTraverser()
+        // Walk the directory tree lazily, without materializing the list of files
+        final Iterable<File> files = com.google.common.io.Files.fileTreeTraverser()
                 .preOrderTraversal(path.toFile()).filter((final File file) -> {
                     return file.isFile() && pattern.matcher(file.getName()).find();
                 });
 
-        final int count = files.size();
-        LOGGER.info("Processing {} files", count);
-
-        Environment.run(files.<Runnable>transform((final File file) -> new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    consumer.accept(file.toPath());
-                } catch (final Throwable ex) {
-                    throw new RuntimeException("Could not process " + file, ex);
-                }
-            }
-
-        }));
+        // Process files in parallel, bounding the number of files loaded at the same time
+        ParallelProcessor.builder().withName("files").withWorkers(this.numWorkers)
+                .withQueueSize(this.workerQueueSize).withMaxHeapUsage(this.workerMaxHeapUsage)
+                .build().process(files, (final File file) -> {
+                    try {
+                        consumer.accept(file.toPath());
+                    } catch (final Throwable ex) {
+                        throw new RuntimeException("Could not process " + file, ex);
+                    }
+                });
     }
 
     private static int indexOf(final String string, final Pattern pattern) {
@@ -567,6 +875,48 @@ public class KE4IR {
         });
     }
 
+    private static final class TermTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAttribute;
+
+        private final List<Term> terms;
+
+        private int index;
+
+        private int remaining;
+
+        TermTokenStream(final List<Term> terms) {
+            this.termAttribute = addAttribute(CharTermAttribute.class);
+            this.terms = terms;
+            this.index = 0;
+            this.remaining = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            // Lucene 5 has no term frequency attribute: the frequency of a term is given by the
+            // number of times it is emitted, which just requires re-emitting the same attribute
+            clearAttributes();
+            while (this.remaining == 0) {
+                if (this.index == this.terms.size()) {
+                    return false;
+                }
+                this.remaining = this.terms.get(this.index++).getFrequency();
+            }
+            this.termAttribute.append(this.terms.get(this.index - 1).getValue());
+            --this.remaining;
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            this.index = 0;
+            this.remaining = 0;
+        }
+
+    }
+
     private static final class FakeSimilarity extends Similarity {
 
         public static final FakeSimilarity INSTANCE = new FakeSimilarity();
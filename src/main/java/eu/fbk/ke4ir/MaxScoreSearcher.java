@@ -0,0 +1,325 @@
+package eu.fbk.ke4ir;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.Similarity.SimWeight;
+
+// Utility class used by Evaluation
+
+/**
+ * Retrieves the top-k documents of a disjunction of (boosted) term queries using the MaxScore
+ * algorithm.
+ *
+ * <p>
+ * Each term is associated to an upper bound of the score it may contribute, obtained by scoring a
+ * hypothetical document with the maximum frequency the term may have in a document, which is at
+ * most {@code totalTermFreq - docFreq + 1}. Terms are sorted by increasing bound, and those whose
+ * cumulated bound is below the score of the current k-th document are non-essential: documents
+ * only containing them are never considered, while the postings of these terms are advanced only
+ * for documents of essential terms that may still enter the top-k. The returned documents and
+ * scores are the same of exhaustive scoring, with ties broken by increasing document ID. This
+ * requires a similarity whose scores do not decrease with term frequency and do not depend on
+ * norms, as the one of {@code TfIdfRanker}.
+ * </p>
+ */
+final class MaxScoreSearcher {
+
+    private static final double EPSILON = 1e-6; // accounts for float rounding in bound checks
+
+    private final IndexSearcher searcher;
+
+    private final LongAdder numScored;
+
+    private final LongAdder numPruned;
+
+    private final LongAdder numPostingsRead;
+
+    private final LongAdder numPostings;
+
+    MaxScoreSearcher(final IndexSearcher searcher) {
+        this.searcher = searcher;
+        this.numScored = new LongAdder();
+        this.numPruned = new LongAdder();
+        this.numPostingsRead = new LongAdder();
+        this.numPostings = new LongAdder();
+    }
+
+    /**
+     * Returns the top-k hits for the supplied query, sorted by decreasing score and increasing
+     * document ID. Documents with a zero score are never returned.
+     *
+     * @param query
+     *            the query, either a term query or a disjunction of (boosted) term queries,
+     *            possibly nested
+     * @param k
+     *            the number of documents to retrieve
+     * @param idResolver
+     *            a function returning the ID of a document given its ordinal, used to break ties
+     * @return the retrieved hits
+     */
+    Hits search(final Query query, final int k, final IntFunction<String> idResolver)
+            throws IOException {
+
+        Preconditions.checkArgument(k > 0, "Invalid k %s", k);
+
+        // Extract term clauses, computing their score upper bounds, and sort them by bound
+        final List<Query> leaves = Lists.newArrayList();
+        collectClauses(query, leaves);
+        final Clause[] clauses = new Clause[leaves.size()];
+        for (int i = 0; i < clauses.length; ++i) {
+            clauses[i] = new Clause(i, leaves.get(i));
+            this.numPostings.add(clauses[i].docFreq);
+        }
+        Arrays.sort(clauses, (c1, c2) -> Double.compare(c1.bound, c2.bound));
+        final double[] cumBounds = new double[clauses.length];
+        for (int i = 0; i < clauses.length; ++i) {
+            cumBounds[i] = clauses[i].bound + (i == 0 ? 0.0 : cumBounds[i - 1]);
+        }
+
+        // Process index segments one at a time, updating a heap with the best k documents
+        final PriorityQueue<Hit> heap = new PriorityQueue<>(k, Hit.WORST_FIRST);
+        final float[] contributions = new float[clauses.length];
+        for (final LeafReaderContext leaf : this.searcher.getIndexReader().leaves()) {
+
+            // Obtain a scorer for each clause, positioned before the first document
+            final Scorer[] scorers = new Scorer[clauses.length];
+            final DocIdSetIterator[] iterators = new DocIdSetIterator[clauses.length];
+            final int[] docs = new int[clauses.length];
+            for (int i = 0; i < clauses.length; ++i) {
+                scorers[i] = clauses[i].weight.scorer(leaf);
+                iterators[i] = scorers[i] == null ? null : scorers[i].iterator();
+                docs[i] = iterators[i] == null ? DocIdSetIterator.NO_MORE_DOCS : -1;
+            }
+
+            int firstEssential = 0;
+            while (true) {
+
+                // Update the essential clauses based on the current k-th score (threshold)
+                final float threshold = heap.size() < k ? 0.0f : heap.peek().score;
+                while (firstEssential < clauses.length
+                        && cumBounds[firstEssential] * (1.0 + EPSILON) < threshold) {
+                    ++firstEssential;
+                }
+
+                // Select the next document among the ones matching essential clauses
+                int doc = DocIdSetIterator.NO_MORE_DOCS;
+                for (int i = firstEssential; i < clauses.length; ++i) {
+                    if (docs[i] == -1) {
+                        docs[i] = iterators[i].nextDoc();
+                        this.numPostingsRead.increment();
+                    }
+                    doc = Math.min(doc, docs[i]);
+                }
+                if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                    break;
+                }
+
+                // Score the document on essential clauses, moving them to their next document
+                double partial = 0.0;
+                Arrays.fill(contributions, 0.0f);
+                for (int i = firstEssential; i < clauses.length; ++i) {
+                    if (docs[i] == doc) {
+                        final float contribution = scorers[i].score();
+                        contributions[clauses[i].index] = contribution;
+                        partial += contribution;
+                        docs[i] = iterators[i].nextDoc();
+                        this.numPostingsRead.increment();
+                    }
+                }
+
+                // Complete scoring with non-essential clauses, from the one with the highest
+                // bound, stopping as soon as the document cannot enter the top-k
+                boolean pruned = false;
+                for (int i = firstEssential - 1; i >= 0; --i) {
+                    if ((partial + cumBounds[i]) * (1.0 + EPSILON) < threshold) {
+                        pruned = true;
+                        break;
+                    }
+                    if (docs[i] < doc) {
+                        docs[i] = iterators[i].advance(doc);
+                        this.numPostingsRead.increment();
+                    }
+                    if (docs[i] == doc) {
+                        final float contribution = scorers[i].score();
+                        contributions[clauses[i].index] = contribution;
+                        partial += contribution;
+                    }
+                }
+                if (pruned) {
+                    this.numPruned.increment();
+                    continue;
+                }
+
+                // Compute the final score summing contributions in the order of query clauses
+                // (as done by exhaustive scoring), and update the heap
+                this.numScored.increment();
+                double sum = 0.0;
+                for (final float contribution : contributions) {
+                    sum += contribution;
+                }
+                final float score = (float) sum;
+                if (score > 0.0f && (heap.size() < k || score >= threshold)) {
+                    final Hit hit = new Hit(leaf.docBase + doc, score, null);
+                    if (heap.size() < k) {
+                        heap.add(hit.withID(idResolver));
+                    } else if (score > threshold
+                            || Hit.WORST_FIRST.compare(hit.withID(idResolver), heap.peek()) > 0) {
+                        heap.poll();
+                        heap.add(hit.withID(idResolver));
+                    }
+                }
+            }
+        }
+
+        // Return the hits in the heap, from the best to the worst
+        final Hit[] hits = heap.toArray(new Hit[heap.size()]);
+        Arrays.sort(hits, Hit.WORST_FIRST.reversed());
+        final Hits result = new Hits(hits.length);
+        for (int i = 0; i < hits.length; ++i) {
+            result.docs[i] = hits[i].doc;
+            result.scores[i] = hits[i].score;
+            result.ids[i] = hits[i].id;
+        }
+        return result;
+    }
+
+    long getNumScored() {
+        return this.numScored.sum();
+    }
+
+    long getNumPruned() {
+        return this.numPruned.sum();
+    }
+
+    long getNumPostingsRead() {
+        return this.numPostingsRead.sum();
+    }
+
+    long getNumPostings() {
+        return this.numPostings.sum();
+    }
+
+    private static void collectClauses(final Query query, final List<Query> clauses) {
+        if (query instanceof BooleanQuery) {
+            for (final BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                Preconditions.checkArgument(clause.getOccur() == Occur.SHOULD,
+                        "Only disjunctive queries are supported: %s", query);
+                collectClauses(clause.getQuery(), clauses);
+            }
+        } else {
+            final Query inner = query instanceof BoostQuery ? ((BoostQuery) query).getQuery()
+                    : query;
+            Preconditions.checkArgument(inner instanceof TermQuery,
+                    "Only term queries are supported: %s", query);
+            clauses.add(query);
+        }
+    }
+
+    private final class Clause {
+
+        final int index;
+
+        final Weight weight;
+
+        final long docFreq;
+
+        final double bound;
+
+        Clause(final int index, final Query query) throws IOException {
+
+            final IndexSearcher searcher = MaxScoreSearcher.this.searcher;
+            final float boost = query instanceof BoostQuery ? ((BoostQuery) query).getBoost()
+                    : 1.0f;
+            final org.apache.lucene.index.Term term = ((TermQuery) (query instanceof BoostQuery
+                    ? ((BoostQuery) query).getQuery() : query)).getTerm();
+            Preconditions.checkArgument(boost >= 0.0f, "Negative boost for %s", query);
+
+            final TermStatistics termStats = searcher.termStatistics(term,
+                    TermContext.build(searcher.getTopReaderContext(), term));
+            final long maxFreq = termStats.totalTermFreq() < 0 ? Integer.MAX_VALUE : termStats
+                    .totalTermFreq() - termStats.docFreq() + 1;
+
+            double bound = 0.0;
+            final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            if (termStats.docFreq() > 0 && !leaves.isEmpty()) {
+                final Similarity similarity = searcher.getSimilarity(true);
+                final SimWeight simWeight = similarity.computeWeight(
+                        searcher.collectionStatistics(term.field()), termStats);
+                simWeight.normalize(1.0f, boost);
+                bound = similarity.simScorer(simWeight, leaves.get(0)).score(0, maxFreq);
+            }
+
+            this.index = index;
+            this.weight = searcher.createNormalizedWeight(query, true);
+            this.docFreq = termStats.docFreq();
+            this.bound = Math.max(0.0, bound);
+        }
+
+    }
+
+    private static final class Hit {
+
+        static final Comparator<Hit> WORST_FIRST = (h1, h2) -> {
+            final int result = Float.compare(h1.score, h2.score);
+            return result != 0 ? result : h2.id.compareTo(h1.id);
+        };
+
+        final int doc;
+
+        final float score;
+
+        final String id;
+
+        Hit(final int doc, final float score, final String id) {
+            this.doc = doc;
+            this.score = score;
+            this.id = id;
+        }
+
+        Hit withID(final IntFunction<String> idResolver) {
+            return this.id != null ? this : new Hit(this.doc, this.score, idResolver
+                    .apply(this.doc));
+        }
+
+    }
+
+    static final class Hits {
+
+        final int[] docs;
+
+        final float[] scores;
+
+        final String[] ids;
+
+        Hits(final int size) {
+            this.docs = new int[size];
+            this.scores = new float[size];
+            this.ids = new String[size];
+        }
+
+    }
+
+}
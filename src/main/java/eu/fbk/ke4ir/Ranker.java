@@ -1,18 +1,33 @@
 package eu.fbk.ke4ir;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Ranks the documents returned by a query, implementing some ranking/similarity method.
@@ -39,6 +54,98 @@ public abstract class Ranker {
     public abstract float[] rank(TermVector queryVector, TermVector[] docVectors,
             Statistics statistics);
 
+    /**
+     * Computes the partial scores of each query term for the documents matched by a query, if
+     * the scores computed by this {@code Ranker} can be decomposed as a combination of per-term
+     * contributions weighted by layer. Partial scores are computed once for the full query, after
+     * which the scores
+     * for the query projected on any subset of its layers can be obtained by
+     * {@link #combine(LayerScores, TermVector)}, without ranking documents again. This
+     * implementation returns null, meaning that scores are not decomposable.
+     *
+     * @param queryVector
+     *            the term vector associated to the query, including all the layers of interest
+     * @param docVectors
+     *            the term vectors associated to the documents matched by the query
+     * @param statistics
+     *            additional statistics that can be queried by the {@code Ranker}
+     * @return the partial scores, or null if not supported
+     */
+    @Nullable
+    public LayerScores rankLayers(final TermVector queryVector, final TermVector[] docVectors,
+            final Statistics statistics) {
+        return null;
+    }
+
+    /**
+     * Combines partial scores previously computed by
+     * {@link #rankLayers(TermVector, TermVector[], Statistics)}, returning exactly the same
+     * scores that {@link #rank(TermVector, TermVector[], Statistics)} would return for the
+     * supplied query vector and the same document vectors. The query vector must
+     * be a projection of the one supplied to {@code rankLayers()} on some of its layers.
+     *
+     * @param layerScores
+     *            the partial scores
+     * @param queryVector
+     *            the query vector, projected on the layers to combine
+     * @return a score array, where i-th element corresponds to i-th document
+     * @throws UnsupportedOperationException
+     *             if the {@code Ranker} does not support score decomposition
+     */
+    public float[] combine(final LayerScores layerScores, final TermVector queryVector) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns a {@code Ranker} with the same configuration of this one, except for the weights
+     * assigned to layers. Partial scores computed by this {@code Ranker} can be
+     * combined by the returned one, so that rankings for different layer weights can be obtained
+     * without ranking documents again.
+     *
+     * @param layerWeights
+     *            a layer-to-weight map; if a layer weight is missing in this map, it is assumed
+     *            to be 0
+     * @return the created {@code Ranker}
+     * @throws UnsupportedOperationException
+     *             if the {@code Ranker} does not support layer weights
+     */
+    public Ranker withLayerWeights(final Map<String, Float> layerWeights) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns a Lucene query that, evaluated with the {@link Similarity} returned by
+     * {@link #getSimilarity()}, matches the documents scored by {@link #rank} and assigns them
+     * the same scores, so that ranking can be delegated to Lucene. Scores may differ from the
+     * ones of {@code rank()} by rounding errors, as Lucene sums clause scores in its own order
+     * and precision. This implementation returns null, meaning that the {@code Ranker} does not
+     * support ranking within Lucene.
+     *
+     * @param queryVector
+     *            the term vector associated to the query
+     * @param statistics
+     *            additional statistics that can be queried by the {@code Ranker}
+     * @param maxClauses
+     *            the max number of clauses of each {@code BooleanQuery} in the returned query
+     * @return the query, or null if not supported
+     */
+    @Nullable
+    public Query createQuery(final TermVector queryVector, final Statistics statistics,
+            final int maxClauses) {
+        return null;
+    }
+
+    /**
+     * Returns the Lucene {@code Similarity} to use for evaluating the queries returned by
+     * {@link #createQuery(TermVector, Statistics, int)}. This implementation returns null.
+     *
+     * @return the similarity, or null if ranking within Lucene is not supported
+     */
+    @Nullable
+    public Similarity getSimilarity() {
+        return null;
+    }
+
     /**
      * {@inheritDoc} Emits a descriptive string describe the Ranker and its configuration. This
      * implementation emits the class name.
@@ -139,23 +246,7 @@ public abstract class Ranker {
                 final Statistics stats) {
 
             // Apply weight rescaling, if configured to do so
-            Map<String, Float> weights = this.layerWeights;
-            if (!this.rescaledLayers.isEmpty()) {
-                float sumBefore = 0.0f;
-                float sumAfter = 0.0f;
-                for (final String layer : this.rescaledLayers) {
-                    final float weight = weights.getOrDefault(layer, 0.0f);
-                    sumBefore += queryVector.getLayers().contains(layer) ? weight : 0.0f;
-                    sumAfter += weight;
-                }
-                if (sumBefore > 0.0f && sumBefore != sumAfter) {
-                    final float multiplier = sumAfter / sumBefore;
-                    weights = Maps.newHashMap(weights);
-                    for (final String layer : this.rescaledLayers) {
-                        weights.put(layer, weights.getOrDefault(layer, 0.0f) * multiplier);
-                    }
-                }
-            }
+            final Map<String, Float> weights = computeWeights(queryVector);
 
             // Retrieve the number of documents from Lucene statistics
             final long numDocs = stats.getNumDocuments();
@@ -175,6 +266,9 @@ public abstract class Ranker {
                 // Extract the document frequency (# documents having that term in the index)
                 final long docFreq = stats.getNumDocuments(queryTerm);
 
+                // Compute TF, query side (normalized frequency)
+                final float tfq = (float) queryTerm.getWeight();
+
                 // Iterate over documents, increasing their score based on how they match the
                 // query term being currently considered
                 for (int i = 0; i < docVectors.length; ++i) {
@@ -185,23 +279,310 @@ public abstract class Ranker {
                         continue;
                     }
 
-                    // Extract required frequencies
-                    final double rfd = docTerm.getFrequency(); // raw frequency, document side
-                    final double nfq = queryTerm.getWeight(); // normalized frequency, query side
-
-                    // Compute TF / IDF
-                    final float tfd = (float) (1.0 + Math.log(rfd)); // TF, document side
-                    final float tfq = (float) nfq; // TF, query side
-                    final float idf = (float) Math.log(numDocs / (double) docFreq); // IDF
-
                     // Update the document score
-                    scores[i] += tfd * idf * idf * tfq * weight;
+                    scores[i] += score(docTerm.getFrequency(), numDocs, docFreq) * tfq * weight;
                 }
             }
 
             // Return the computed scores
             return scores;
         }
+
+        @Override
+        public LayerScores rankLayers(final TermVector queryVector,
+                final TermVector[] docVectors, final Statistics stats) {
+
+            // Compute the partial scores of each query term, not weighted by layer as weights
+            // depend on the layers combined. Only matching documents are stored
+            final long numDocs = stats.getNumDocuments();
+            final LayerScores layerScores = new LayerScores(docVectors.length);
+            final int[] docs = new int[docVectors.length];
+            final float[] scores = new float[docVectors.length];
+            for (final Term queryTerm : queryVector.getTerms()) {
+                final String layer = queryTerm.getField();
+                final long docFreq = stats.getNumDocuments(queryTerm);
+                final float tfq = (float) queryTerm.getWeight();
+                int numMatches = 0;
+                for (int i = 0; i < docVectors.length; ++i) {
+                    final Term docTerm = docVectors[i].getTerm(layer, queryTerm.getValue());
+                    if (docTerm != null) {
+                        docs[numMatches] = i;
+                        scores[numMatches] = score(docTerm.getFrequency(), numDocs, docFreq) * tfq;
+                        ++numMatches;
+                    }
+                }
+                layerScores.put(queryTerm, Arrays.copyOf(docs, numMatches),
+                        Arrays.copyOf(scores, numMatches));
+            }
+            return layerScores;
+        }
+
+        @Override
+        public float[] combine(final LayerScores layerScores, final TermVector queryVector) {
+
+            // Weight and sum partial scores with the same operations and in the same order of
+            // rank(), so to obtain the same scores bit by bit
+            final Map<String, Float> weights = computeWeights(queryVector);
+            final float[] scores = new float[layerScores.size()];
+            for (final Term queryTerm : queryVector.getTerms()) {
+                final int[] docs = layerScores.getDocuments(queryTerm);
+                if (docs != null) {
+                    final float[] termScores = layerScores.getScores(queryTerm);
+                    final float weight = weights.getOrDefault(queryTerm.getField(), 0.0f);
+                    for (int j = 0; j < docs.length; ++j) {
+                        scores[docs[j]] += termScores[j] * weight;
+                    }
+                }
+            }
+            return scores;
+        }
+
+        @Override
+        public Ranker withLayerWeights(final Map<String, Float> layerWeights) {
+            return new TfIdfRanker(layerWeights, this.rescaledLayers);
+        }
+
+        @Override
+        public Query createQuery(final TermVector queryVector, final Statistics statistics,
+                final int maxClauses) {
+
+            // Build a clause for each query term, boosted by its weight on the query side (terms
+            // with zero weight are kept, so that matched documents are the same as in rank())
+            final Map<String, Float> weights = computeWeights(queryVector);
+            final List<Query> clauses = Lists.newArrayList();
+            for (final Term queryTerm : queryVector.getTerms()) {
+                final float weight = weights.getOrDefault(queryTerm.getField(), 0.0f);
+                final float queryWeight = (float) queryTerm.getWeight() * weight;
+                clauses.add(new BoostQuery(new TermQuery(new org.apache.lucene.index.Term(
+                        queryTerm.getField(), queryTerm.getValue())), queryWeight));
+            }
+
+            // Combine clauses in a disjunctive query, nesting queries if there are too many
+            return createDisjunction(clauses, maxClauses);
+        }
+
+        @Override
+        public Similarity getSimilarity() {
+            return TfIdfSimilarity.INSTANCE;
+        }
+
+        private Map<String, Float> computeWeights(final TermVector queryVector) {
+            Map<String, Float> weights = this.layerWeights;
+            if (!this.rescaledLayers.isEmpty()) {
+                float sumBefore = 0.0f;
+                float sumAfter = 0.0f;
+                for (final String layer : this.rescaledLayers) {
+                    final float weight = weights.getOrDefault(layer, 0.0f);
+                    sumBefore += queryVector.getLayers().contains(layer) ? weight : 0.0f;
+                    sumAfter += weight;
+                }
+                if (sumBefore > 0.0f && sumBefore != sumAfter) {
+                    final float multiplier = sumAfter / sumBefore;
+                    weights = Maps.newHashMap(weights);
+                    for (final String layer : this.rescaledLayers) {
+                        weights.put(layer, weights.getOrDefault(layer, 0.0f) * multiplier);
+                    }
+                }
+            }
+            return weights;
+        }
+
+        static float score(final double rfd, final long numDocs, final long docFreq) {
+
+            // Compute TF / IDF (rfd = raw frequency, document side)
+            final float tfd = (float) (1.0 + Math.log(rfd)); // TF, document side
+            final float idf = (float) Math.log(numDocs / (double) docFreq); // IDF
+
+            // Return the document side of the contribution to the document score, to be
+            // multiplied by the query side TF and then by the layer weight
+            return tfd * idf * idf;
+        }
+
+        private static Query createDisjunction(final List<Query> clauses, final int maxClauses) {
+            if (clauses.size() > maxClauses) {
+                final List<Query> queries = Lists.newArrayList();
+                for (final List<Query> chunk : Lists.partition(clauses, maxClauses)) {
+                    queries.add(createDisjunction(chunk, maxClauses));
+                }
+                return createDisjunction(queries, maxClauses);
+            }
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.setDisableCoord(true);
+            for (final Query clause : clauses) {
+                builder.add(clause, Occur.SHOULD);
+            }
+            return builder.build();
+        }
+
+    }
+
+    private static final class TfIdfSimilarity extends Similarity {
+
+        static final TfIdfSimilarity INSTANCE = new TfIdfSimilarity();
+
+        @Override
+        public long computeNorm(final FieldInvertState state) {
+            return 0; // norms are not used
+        }
+
+        @Override
+        public SimWeight computeWeight(final CollectionStatistics collectionStats,
+                final TermStatistics... termStats) {
+            Preconditions.checkArgument(termStats.length == 1,
+                    "Only single term queries are supported");
+            return new TfIdfWeight(collectionStats.maxDoc(), termStats[0].docFreq());
+        }
+
+        @Override
+        public SimScorer simScorer(final SimWeight weight, final LeafReaderContext context)
+                throws IOException {
+
+            final TfIdfWeight w = (TfIdfWeight) weight;
+            return new SimScorer() {
+
+                @Override
+                public float score(final int doc, final float freq) {
+                    return TfIdfRanker.score(freq, w.numDocs, w.docFreq) * w.boost;
+                }
+
+                @Override
+                public Explanation explain(final int doc, final Explanation freq) {
+                    return Explanation.match(score(doc, freq.getValue()), "tfidf, numDocs="
+                            + w.numDocs + ", docFreq=" + w.docFreq + ", boost=" + w.boost, freq);
+                }
+
+                @Override
+                public float computeSlopFactor(final int distance) {
+                    return 1.0f;
+                }
+
+                @Override
+                public float computePayloadFactor(final int doc, final int start, final int end,
+                        final BytesRef payload) {
+                    return 1.0f;
+                }
+
+            };
+        }
+
+        private static final class TfIdfWeight extends SimWeight {
+
+            final long numDocs;
+
+            final long docFreq;
+
+            float boost;
+
+            TfIdfWeight(final long numDocs, final long docFreq) {
+                this.numDocs = numDocs;
+                this.docFreq = docFreq;
+                this.boost = 1.0f;
+            }
+
+            @Override
+            public float getValueForNormalization() {
+                return 1.0f; // query normalization is not used
+            }
+
+            @Override
+            public void normalize(final float queryNorm, final float boost) {
+                this.boost = boost;
+            }
+
+        }
+
+    }
+
+    /**
+     * Partial document scores of the terms of a query, produced and consumed by {@code Ranker}
+     * objects supporting score decomposition. For each query term, the partial scores of the
+     * documents matching it are stored in sparse form, as an array of document indexes in
+     * increasing order and a parallel array of scores.
+     */
+    public static final class LayerScores {
+
+        private final int size;
+
+        private final Map<Term, int[]> documents;
+
+        private final Map<Term, float[]> scores;
+
+        /**
+         * Creates a new {@code LayerScores} object for the number of documents specified, with
+         * no term scores.
+         *
+         * @param size
+         *            the number of documents
+         */
+        public LayerScores(final int size) {
+            this.size = size;
+            this.documents = Maps.newHashMap();
+            this.scores = Maps.newHashMap();
+        }
+
+        /**
+         * Returns the number of documents.
+         *
+         * @return the number of documents
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Returns the query terms for which partial scores are available.
+         *
+         * @return the set of terms
+         */
+        public Set<Term> getTerms() {
+            return this.documents.keySet();
+        }
+
+        /**
+         * Returns the indexes of the documents matching the term specified, if any.
+         *
+         * @param term
+         *            the query term
+         * @return an array with the indexes of matching documents, in increasing order, or null
+         *         if missing
+         */
+        @Nullable
+        public int[] getDocuments(final Term term) {
+            return this.documents.get(term);
+        }
+
+        /**
+         * Returns the partial scores of the documents matching the term specified, if any.
+         *
+         * @param term
+         *            the query term
+         * @return an array with the partial score of each document returned by
+         *         {@link #getDocuments(Term)}, or null if missing
+         */
+        @Nullable
+        public float[] getScores(final Term term) {
+            return this.scores.get(term);
+        }
+
+        /**
+         * Stores the partial scores of the documents matching the term specified, replacing
+         * previous ones.
+         *
+         * @param term
+         *            the query term
+         * @param documents
+         *            the indexes of matching documents, in increasing order
+         * @param scores
+         *            the partial score of each matching document
+         */
+        public void put(final Term term, final int[] documents, final float[] scores) {
+            Preconditions.checkArgument(documents.length == scores.length,
+                    "Different number of documents and scores: %s, %s", documents.length,
+                    scores.length);
+            this.documents.put(term, documents);
+            this.scores.put(term, scores);
+        }
+
     }
 
     /**
@@ -64,7 +64,7 @@ public final class Term implements Comparable<Term> {
             return false;
         }
         final Term other = (Term) object;
-        return this.field == other.field && this.value.equals(other.value);
+        return this.field.equals(other.field) && this.value.equals(other.value);
     }
 
     @Override
@@ -1,17 +1,24 @@
 package eu.fbk.ke4ir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -273,6 +280,166 @@ public final class TermVector implements Comparable<TermVector> {
         return (Map) map;
     }
 
+    /**
+     * Returns a compact binary encoding of this vector, which can be decoded with
+     * {@link #fromBytes(byte[], int, int)}. Terms are grouped by field, with each value encoded
+     * as the length of the prefix shared with the previous value plus the remaining UTF-8 bytes;
+     * weights are written only if different from 1.0.
+     *
+     * @return the encoded vector
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 8 * this.terms.size());
+        int start = 0;
+        writeVarint(out, getLayers().size());
+        while (start < this.terms.size()) {
+            final String field = this.terms.get(start).getField();
+            int end = start + 1;
+            while (end < this.terms.size() && this.terms.get(end).getField().equals(field)) {
+                ++end;
+            }
+            final byte[] fieldBytes = field.getBytes(Charsets.UTF_8);
+            writeVarint(out, fieldBytes.length);
+            out.write(fieldBytes, 0, fieldBytes.length);
+            writeVarint(out, end - start);
+            byte[] previous = new byte[0];
+            for (int i = start; i < end; ++i) {
+                final Term term = this.terms.get(i);
+                final byte[] value = term.getValue().getBytes(Charsets.UTF_8);
+                int shared = 0;
+                final int maxShared = Math.min(previous.length, value.length);
+                while (shared < maxShared && previous[shared] == value[shared]) {
+                    ++shared;
+                }
+                writeVarint(out, shared);
+                writeVarint(out, value.length - shared);
+                out.write(value, shared, value.length - shared);
+                final boolean weighted = term.getWeight() != 1.0;
+                writeVarint(out, term.getFrequency() << 1 | (weighted ? 1 : 0));
+                if (weighted) {
+                    final long bits = Double.doubleToRawLongBits(term.getWeight());
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) (bits >>> shift));
+                    }
+                }
+                previous = value;
+            }
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a vector previously encoded with {@link #toBytes()}.
+     *
+     * @param bytes
+     *            the array containing the encoded vector
+     * @param offset
+     *            the offset in the array where the encoded vector starts
+     * @param length
+     *            the length of the encoded vector
+     * @return the decoded vector
+     */
+    public static TermVector fromBytes(final byte[] bytes, final int offset, final int length) {
+        final ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        final int numFields = readVarint(in);
+        final List<Term> terms = new ArrayList<>();
+        for (int f = 0; f < numFields; ++f) {
+            final byte[] fieldBytes = new byte[readVarint(in)];
+            in.get(fieldBytes);
+            final String field = new String(fieldBytes, Charsets.UTF_8);
+            final int numTerms = readVarint(in);
+            byte[] value = new byte[0];
+            for (int i = 0; i < numTerms; ++i) {
+                final int shared = readVarint(in);
+                final byte[] newValue = new byte[shared + readVarint(in)];
+                System.arraycopy(value, 0, newValue, 0, shared);
+                in.get(newValue, shared, newValue.length - shared);
+                value = newValue;
+                final int header = readVarint(in);
+                final double weight = (header & 1) != 0 ? in.getDouble() : 1.0;
+                terms.add(Term.create(field, new String(value, Charsets.UTF_8), header >>> 1,
+                        weight));
+            }
+        }
+        return terms.isEmpty() ? EMPTY : new TermVector(terms);
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(final ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over the (ID, vector) entries of the supplied reader, reading one
+     * vector at a time. Differently from {@link #read(Reader)}, only the lines of the current
+     * vector are kept in memory, which requires the lines of each vector to be consecutive (as
+     * produced by {@link #write(Writer, Map)}); I/O errors are propagated unchecked.
+     *
+     * @param reader
+     *            the reader to read from, not closed by this method
+     * @return an iterator over the vectors read
+     */
+    public static Iterator<Map.Entry<String, TermVector>> iterate(final Reader reader) {
+
+        return new AbstractIterator<Map.Entry<String, TermVector>>() {
+
+            private final StringBuilder sb = new StringBuilder();
+
+            private String pendingID = null;
+
+            private Term pendingTerm = null;
+
+            @Override
+            protected Map.Entry<String, TermVector> computeNext() {
+                try {
+                    if (this.pendingID == null && !readLine()) {
+                        return endOfData();
+                    }
+                    final String id = this.pendingID;
+                    final Builder builder = builder().addTerm(this.pendingTerm);
+                    while (readLine() && this.pendingID.equals(id)) {
+                        builder.addTerm(this.pendingTerm);
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(id, builder.build());
+                } catch (final IOException ex) {
+                    throw Throwables.propagate(ex);
+                }
+            }
+
+            private boolean readLine() throws IOException {
+                final String id = readEscaped(reader, this.sb);
+                if (id.isEmpty()) {
+                    this.pendingID = null;
+                    this.pendingTerm = null;
+                    return false;
+                }
+                final String field = readEscaped(reader, this.sb);
+                final String value = readEscaped(reader, this.sb);
+                final int frequency = Integer.parseInt(readEscaped(reader, this.sb));
+                final double weight = Double.parseDouble(readEscaped(reader, this.sb));
+                this.pendingID = id;
+                this.pendingTerm = Term.create(field, value, frequency, weight);
+                return true;
+            }
+
+        };
+    }
+
     private static void writeEscaped(final Writer writer, final String string) throws IOException {
         final int len = string.length();
         for (int i = 0; i < len; ++i) {
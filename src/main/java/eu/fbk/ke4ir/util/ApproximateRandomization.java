@@ -1,76 +1,151 @@
 package eu.fbk.ke4ir.util;
 
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import com.google.common.base.Preconditions;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Paired Approximate Randomization test for the difference of the means of two samples.
+ *
+ * <p>
+ * Each iteration swaps each pair of values with probability 0.5, which amounts to flipping the
+ * sign of their difference, and checks whether the absolute sum of the resulting differences is
+ * at least the observed one. Signs are drawn 64 at a time from a {@link SplittableRandom}, and
+ * iterations are run in parallel chunks, each with its own random generator split in order from
+ * a generator for the seed, so that results do not depend on thread scheduling. Optionally, the
+ * test stops as soon as a given number of iterations exceeding the observed difference has been
+ * found (Besag and Clifford sequential test), as at that point the p-value is known to be large.
+ * Chunks are then run in rounds of fixed size, so that the iterations performed, and thus the
+ * p-value, do not depend on the number of cores either.
+ * </p>
+ */
 public class ApproximateRandomization {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ApproximateRandomization.class);
 
-    public static double test(final int iterations, final double[] a, final double b[]) {
-
-        double bs = calculateScore(a);
-        double ps = calculateScore(b);
-        final double d = Math.abs(ps - bs);
-
-        double p = 0;
-        double mean = 0;
-        double variance = 0;
-        double sum = 0;
-        double ssum = 0;
-
-        // c - number of times that the pseudostatistic is greater or equal to the true statistic
-        int c = 0;
-        for (int i = 0; i < iterations; i++) {
-            final double[] x = new double[a.length];
-            final double[] y = new double[b.length];
+    private static final int CHUNK_SIZE = 1024; // iterations per parallel chunk
 
-            System.arraycopy(a, 0, x, 0, a.length);
-            System.arraycopy(b, 0, y, 0, b.length);
+    private static final int ROUND_SIZE = 8; // chunks between early stopping checks
 
-            swap(x, y, new Random(i * 123));
-            bs = calculateScore(x);
-            ps = calculateScore(y);
+    private static final double EPSILON = 1e-9; // accounts for rounding in sums of differences
 
-            final double di = Math.abs(ps - bs);
-            sum += di;
-            ssum += Math.pow(di, 2);
+    /**
+     * Performs the test with the number of iterations specified, without early stopping and
+     * using a fixed seed.
+     *
+     * @param iterations
+     *            the number of iterations
+     * @param a
+     *            the first sample
+     * @param b
+     *            the second sample, paired with the first one
+     * @return the p-value
+     */
+    public static double test(final int iterations, final double[] a, final double b[]) {
+        return test(iterations, 0, 0L, a, b);
+    }
 
-            if (di >= d) {
-                c++;
+    /**
+     * Performs the test with the number of iterations, early stopping threshold and seed
+     * specified.
+     *
+     * @param iterations
+     *            the max number of iterations
+     * @param maxExceedances
+     *            the number of iterations with a difference at least equal to the observed one
+     *            after which to stop, checked every {@value #ROUND_SIZE} chunks of
+     *            {@value #CHUNK_SIZE} iterations; 0 to disable early stopping
+     * @param seed
+     *            the seed for random number generation
+     * @param a
+     *            the first sample
+     * @param b
+     *            the second sample, paired with the first one
+     * @return the p-value, estimated as {@code (c + 1) / (n + 1)} where {@code n} is the number
+     *         of iterations performed and {@code c} the number of them with a difference at least
+     *         equal to the observed one
+     */
+    public static double test(final int iterations, final int maxExceedances, final long seed,
+            final double[] a, final double b[]) {
+
+        Preconditions.checkArgument(iterations > 0, "Invalid number of iterations %s",
+                iterations);
+        Preconditions.checkArgument(maxExceedances >= 0, "Invalid max exceedances %s",
+                maxExceedances);
+        Preconditions.checkArgument(a.length == b.length, "Samples have different sizes: %s, %s",
+                a.length, b.length);
+
+        // Compute paired differences, dropping zero ones as not affected by swapping
+        final double[] diffs = new double[a.length];
+        int numDiffs = 0;
+        double observed = 0.0;
+        double scale = 0.0;
+        for (int i = 0; i < a.length; ++i) {
+            final double diff = b[i] - a[i];
+            if (diff != 0.0) {
+                diffs[numDiffs++] = diff;
+                observed += diff;
+                scale += Math.abs(diff);
+            }
+        }
+        if (numDiffs == 0) {
+            return 1.0;
+        }
+        final int size = numDiffs;
+        final double threshold = Math.abs(observed) - scale * EPSILON;
+
+        // Process chunks of iterations in parallel, in rounds of a fixed number of chunks if
+        // early stopping is enabled (otherwise, all at once)
+        final int numChunks = (iterations - 1) / CHUNK_SIZE + 1;
+        final SplittableRandom[] randoms = new SplittableRandom[numChunks];
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < numChunks; ++i) {
+            randoms[i] = random.split();
+        }
+        final int roundSize = maxExceedances > 0 ? ROUND_SIZE : numChunks;
+        long count = 0;
+        int done = 0;
+        for (int from = 0; from < numChunks; from += roundSize) {
+            final int to = Math.min(numChunks, from + roundSize);
+            count += IntStream.range(from, to).parallel().mapToLong(chunk -> {
+                final int chunkIterations = Math.min(CHUNK_SIZE, iterations - chunk * CHUNK_SIZE);
+                return countExceedances(diffs, size, threshold, randoms[chunk], chunkIterations);
+            }).sum();
+            done = Math.min(iterations, to * CHUNK_SIZE);
+            if (maxExceedances > 0 && count >= maxExceedances) {
+                break;
             }
         }
 
-        mean = sum / iterations;
-        variance = (iterations * ssum - Math.pow(sum, 2)) / iterations * (iterations - 1);
-
-        p = (double) (c + 1) / (iterations + 1);
-
-        LOGGER.debug("Mean: " + mean + ", " + Math.sqrt(variance));
-        LOGGER.debug(p + " = (" + c + " + 1) / (" + iterations + " + 1)");
-
+        final double p = (double) (count + 1) / (done + 1);
+        LOGGER.debug("{} = ({} + 1) / ({} + 1){}", p, count, done,
+                done < iterations ? " (stopped early)" : "");
         return p;
     }
 
-    private static void swap(final double[] y, final double[] z, final Random rdm) {
-        for (int i = 0; i < y.length; i++) {
-            final double p = rdm.nextDouble();
-            if (p < 0.5) {
-                final double t = y[i];
-                y[i] = z[i];
-                z[i] = t;
+    private static long countExceedances(final double[] diffs, final int size,
+            final double threshold, final SplittableRandom random, final int iterations) {
+
+        long count = 0;
+        for (int iteration = 0; iteration < iterations; ++iteration) {
+            double sum = 0.0;
+            long signs = 0L;
+            for (int i = 0; i < size; ++i) {
+                if ((i & 63) == 0) {
+                    signs = random.nextLong();
+                }
+                sum += (signs & 1L) != 0 ? -diffs[i] : diffs[i];
+                signs >>>= 1;
+            }
+            if (Math.abs(sum) >= threshold) {
+                ++count;
             }
         }
-    }
-
-    static double calculateScore(final double[] tmp) {
-        double sum = 0.0;
-        for (final double v : tmp) {
-            sum += v;
-        }
-        return sum / tmp.length;
+        return count;
     }
 
 }
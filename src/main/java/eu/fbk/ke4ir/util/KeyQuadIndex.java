@@ -1,40 +1,60 @@
 package eu.fbk.ke4ir.util;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.LogManager;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
-import com.spotify.sparkey.CompressionType;
-import com.spotify.sparkey.Sparkey;
-import com.spotify.sparkey.SparkeyReader;
-import com.spotify.sparkey.SparkeyWriter;
+import com.google.common.primitives.UnsignedBytes;
 
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -47,22 +67,37 @@ import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.Rio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
+import org.xerial.snappy.SnappyInputStream;
+import org.xerial.snappy.SnappyOutputStream;
 
+import eu.fbk.rdfpro.AbstractRDFHandler;
 import eu.fbk.rdfpro.AbstractRDFHandlerWrapper;
 import eu.fbk.rdfpro.Mapper;
 import eu.fbk.rdfpro.RDFHandlers;
 import eu.fbk.rdfpro.RDFProcessors;
 import eu.fbk.rdfpro.RDFSources;
 import eu.fbk.rdfpro.Reducer;
+import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.QuadModel;
 import eu.fbk.rdfpro.util.StatementComponent;
 import eu.fbk.rdfpro.util.Statements;
 
 public final class KeyQuadIndex implements Closeable {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyQuadIndex.class);
+
+    /** Latest encoding version, using varints for namespace IDs and lengths. */
+    public static final int VERSION = 2;
+
     private static final byte[] NS_KEY = new byte[] {};
 
+    private static final byte[] VERSION_KEY = new byte[] { 0 }; // absent in v1 indexes
+
+    private static final double BLOOM_FPP = 0.01;
+
     private static final int HI_END = 0;
 
     private static final int HI_END_S = 1 << 5;
@@ -81,12 +116,33 @@ public final class KeyQuadIndex implements Closeable {
 
     private static final BiMap<URI, Integer> DT_MAP;
 
-    private final SparkeyReader reader;
+    private final KeyQuadStore store;
+
+    private final KeyQuadStore.Reader[] readers;
+
+    private final BloomFilter<byte[]>[] filters; // null elements for shards without filter
+
+    private final int version;
+
+    private final Queue<KeyQuadStore.Reader>[] idleReaders; // per shard, ready for lookups
+
+    private final List<KeyQuadStore.Reader> duplicateReaders;
 
     private final Map<String, Integer> nsMap;
 
     private final String[] nsArray;
 
+    @Nullable
+    private final ValueCache cache;
+
+    private final LongAdder numLookups;
+
+    private final LongAdder numHits;
+
+    private final LongAdder numFiltered;
+
+    private final LongAdder numFalsePositives;
+
     static {
         final ImmutableBiMap.Builder<URI, Integer> builder = ImmutableBiMap.builder();
         int index = 0;
@@ -109,10 +165,42 @@ public final class KeyQuadIndex implements Closeable {
     }
 
     public KeyQuadIndex(final File file) {
+        this(file, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public KeyQuadIndex(final File file, @Nullable final ValueCache cache) {
+        this.cache = cache;
+        this.numLookups = new LongAdder();
+        this.numHits = new LongAdder();
+        this.numFiltered = new LongAdder();
+        this.numFalsePositives = new LongAdder();
         try {
-            this.reader = Sparkey.open(file);
+            final List<File> shardFiles = shardFiles(file);
+            final KeyQuadStore store = KeyQuadStore.detect(shardFiles.get(0));
+            if (store == null) {
+                throw new FileNotFoundException("No index at " + file);
+            }
+            this.store = store;
+            this.readers = new KeyQuadStore.Reader[shardFiles.size()];
+            this.filters = new BloomFilter[shardFiles.size()];
+            for (int i = 0; i < this.readers.length; ++i) {
+                this.readers[i] = store.openReader(shardFiles.get(i));
+                final File filterFile = bloomFile(shardFiles.get(i));
+                if (filterFile.exists()) {
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(
+                            filterFile))) {
+                        this.filters[i] = BloomFilter.readFrom(in, Funnels.byteArrayFunnel());
+                    }
+                }
+            }
+            final ByteBuffer versionBuffer = this.readers[0].get(VERSION_KEY);
+            this.version = versionBuffer == null ? 1 : versionBuffer.get();
+            Preconditions.checkArgument(this.version >= 1 && this.version <= VERSION,
+                    "Unsupported index version %s", this.version);
+            final ByteBuffer nsBuffer = this.readers[0].get(NS_KEY);
             this.nsArray = Splitter.on('\n')
-                    .splitToList(new String(this.reader.getAsByteArray(NS_KEY), Charsets.UTF_8))
+                    .splitToList(readString(nsBuffer, nsBuffer.remaining()))
                     .toArray(new String[0]);
             this.nsMap = Maps.newHashMap();
             for (int i = 0; i < this.nsArray.length; ++i) {
@@ -121,6 +209,49 @@ public final class KeyQuadIndex implements Closeable {
         } catch (final IOException ex) {
             throw Throwables.propagate(ex);
         }
+
+        // Store readers are not thread safe: rather than serializing lookups on a shared
+        // reader, each lookup borrows a duplicate sharing the same memory-mapped files and gives
+        // it back when done. Duplicates are pooled rather than bound to threads, so that their
+        // number is bounded by the max number of concurrent lookups, whatever the threads doing
+        // them (e.g., short-lived workers or a lookup nested in the decoding of another one)
+        this.duplicateReaders = Lists.newArrayList();
+        this.idleReaders = new Queue[this.readers.length];
+        for (int i = 0; i < this.readers.length; ++i) {
+            this.idleReaders[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public KeyQuadStore getStore() {
+        return this.store;
+    }
+
+    public int getNumShards() {
+        return this.readers.length;
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    public long getNumLookups() {
+        return this.numLookups.sum();
+    }
+
+    public long getNumHits() {
+        return this.numHits.sum();
+    }
+
+    public long getNumMisses() {
+        return this.numLookups.sum() - this.numHits.sum();
+    }
+
+    public long getNumFiltered() {
+        return this.numFiltered.sum();
+    }
+
+    public long getNumFalsePositives() {
+        return this.numFalsePositives.sum();
     }
 
     public QuadModel get(final Value key) {
@@ -131,19 +262,12 @@ public final class KeyQuadIndex implements Closeable {
     }
 
     public boolean get(final Value key, final RDFHandler handler) throws RDFHandlerException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(handler);
         try {
-            final byte[] keyBytes = write(this.nsMap, new ByteArrayOutputStream(), key)
-                    .toByteArray();
-            final byte[] valueBytes;
-            synchronized (this.reader) {
-                valueBytes = this.reader.getAsByteArray(keyBytes);
-            }
-            if (valueBytes == null) {
-                return false;
-            } else {
-                read(this.nsArray, new ByteArrayInputStream(valueBytes), handler);
-                return true;
-            }
+            final byte[] keyBytes = encode(key);
+            final int shard = shardOf(keyBytes, this.readers.length);
+            return mightContain(keyBytes, shard) && probe(keyBytes, shard, handler);
         } catch (final IOException ex) {
             throw Throwables.propagate(ex);
         }
@@ -166,16 +290,30 @@ public final class KeyQuadIndex implements Closeable {
         return model;
     }
 
+    /**
+     * Looks up multiple keys in a single batch, emitting the quads associated to them to the
+     * supplied handler. Keys are encoded and deduplicated upfront; those rejected by Bloom filters
+     * are discarded, while the others are sorted by shard and hash table slot, so that probes
+     * scan each memory-mapped hash table in a single forward pass rather than jumping randomly
+     * across its pages.
+     *
+     * @param keys
+     *            the keys to look up
+     * @param handler
+     *            the handler receiving the quads of found keys, in no particular order
+     * @return the number of keys found
+     * @throws RDFHandlerException
+     *             on failure
+     */
     public int getAll(final Iterable<? extends Value> keys, final RDFHandler handler)
             throws RDFHandlerException {
         Objects.requireNonNull(keys);
         Objects.requireNonNull(handler);
-        int result = 0;
+        final List<byte[]> keysBytes = Lists.newArrayList();
         for (final Value key : keys instanceof Set ? keys : ImmutableSet.copyOf(keys)) {
-            final boolean found = get(key, handler);
-            result += found ? 1 : 0;
+            keysBytes.add(encode(key));
         }
-        return result;
+        return getAll(keysBytes, handler);
     }
 
     public int getAll(final Iterable<? extends Value> keys, final Collection<Statement> model) {
@@ -201,9 +339,10 @@ public final class KeyQuadIndex implements Closeable {
             throws RDFHandlerException {
 
         Objects.requireNonNull(keys);
+        Objects.requireNonNull(handler);
 
         final Set<Value> visited = Sets.newHashSet();
-        final List<Value> queue = Lists.newLinkedList(keys);
+        final List<Value> nextLevel = Lists.newArrayList();
 
         final RDFHandler sink = new AbstractRDFHandlerWrapper(handler) {
 
@@ -218,19 +357,25 @@ public final class KeyQuadIndex implements Closeable {
 
             private void enqueueIfMatches(@Nullable final Value value) {
                 if (value != null && (matcher == null || matcher.test(value))) {
-                    queue.add(value);
+                    nextLevel.add(value);
                 }
             }
 
         };
 
+        // Visit the graph breadth first, fetching each level with a single batch lookup
         int result = 0;
-        while (!queue.isEmpty()) {
-            final Value key = queue.remove(0);
-            if (visited.add(key)) {
-                final boolean found = get(key, sink);
-                result += found ? 1 : 0;
+        List<Value> level = Lists.newArrayList(keys);
+        while (!level.isEmpty()) {
+            final List<byte[]> keysBytes = Lists.newArrayListWithCapacity(level.size());
+            for (final Value key : level) {
+                if (visited.add(key)) {
+                    keysBytes.add(encode(key));
+                }
             }
+            nextLevel.clear();
+            result += getAll(keysBytes, sink);
+            level = Lists.newArrayList(nextLevel);
         }
         return result;
     }
@@ -246,88 +391,291 @@ public final class KeyQuadIndex implements Closeable {
         }
     }
 
+    private int getAll(final List<byte[]> keysBytes, final RDFHandler handler)
+            throws RDFHandlerException {
+
+        // Discard keys rejected by Bloom filters, computing shard and slot of remaining ones
+        final List<Probe> probes = Lists.newArrayListWithCapacity(keysBytes.size());
+        for (final byte[] keyBytes : keysBytes) {
+            final int shard = shardOf(keyBytes, this.readers.length);
+            if (mightContain(keyBytes, shard)) {
+                probes.add(new Probe(keyBytes, shard, slotOf(keyBytes, shard)));
+            }
+        }
+
+        // Probe the remaining keys in (shard, slot) order
+        Collections.sort(probes);
+        int result = 0;
+        try {
+            for (final Probe probe : probes) {
+                result += probe(probe.key, probe.shard, handler) ? 1 : 0;
+            }
+        } catch (final IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+        return result;
+    }
+
+    private byte[] encode(final Value key) {
+        return write(this.version, this.nsMap, new ByteArrayOutputStream(), key).toByteArray();
+    }
+
+    private long slotOf(final byte[] keyBytes, final int shard) {
+        return this.readers[shard].slotOf(keyBytes); // safe: no state involved
+    }
+
+    private boolean mightContain(final byte[] keyBytes, final int shard) {
+        // Misses are mostly answered by the Bloom filter, without probing the hash table
+        this.numLookups.increment();
+        final BloomFilter<byte[]> filter = this.filters[shard];
+        if (filter != null && !filter.mightContain(keyBytes)) {
+            this.numFiltered.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean probe(final byte[] keyBytes, final int shard, final RDFHandler handler)
+            throws IOException, RDFHandlerException {
+
+        // The value returned by a reader is valid until its next lookup: keep the reader out of
+        // the pool until the value has been decoded
+        final KeyQuadStore.Reader reader = borrowReader(shard);
+        try {
+            final ByteBuffer value = reader.get(keyBytes);
+            if (value == null) {
+                if (this.filters[shard] != null) {
+                    this.numFalsePositives.increment();
+                }
+                return false;
+            }
+            this.numHits.increment();
+            read(this.version, this.nsArray, this.cache, value, handler);
+            return true;
+
+        } finally {
+            this.idleReaders[shard].add(reader);
+        }
+    }
+
+    private KeyQuadStore.Reader borrowReader(final int shard) {
+        final KeyQuadStore.Reader reader = this.idleReaders[shard].poll();
+        if (reader != null) {
+            return reader;
+        }
+        synchronized (this.duplicateReaders) {
+            final KeyQuadStore.Reader duplicate = this.readers[shard].duplicate();
+            this.duplicateReaders.add(duplicate);
+            return duplicate;
+        }
+    }
+
     @Override
     public void close() {
-        this.reader.close();
+        LOGGER.debug("{} lookups: {} hits, {} misses ({} filtered, {} false positives)",
+                getNumLookups(), getNumHits(), getNumMisses(), getNumFiltered(),
+                getNumFalsePositives());
+        synchronized (this.duplicateReaders) {
+            for (final KeyQuadStore.Reader reader : this.duplicateReaders) {
+                reader.close();
+            }
+            this.duplicateReaders.clear();
+            for (final Queue<KeyQuadStore.Reader> queue : this.idleReaders) {
+                queue.clear();
+            }
+        }
+        for (final KeyQuadStore.Reader reader : this.readers) {
+            reader.close();
+        }
     }
 
-    @Nullable
-    private static Value read(final String[] nsArray, final ByteArrayInputStream stream) {
+    private static int shardOf(final byte[] keyBytes, final int numShards) {
+        // Must stay stable across versions, as it determines the layout of existing indexes
+        if (numShards == 1) {
+            return 0;
+        }
+        final int hash = Hashing.murmur3_32().hashBytes(keyBytes).asInt();
+        return (hash & 0x7FFFFFFF) % numShards;
+    }
 
-        try {
-            final ValueFactory vf = Statements.VALUE_FACTORY;
-            final int b = stream.read();
-            final int hi = b & 0xE0;
-
-            if (hi == HI_NULL) {
-                return null;
-
-            } else if (hi == HI_BNODE) {
-                final byte[] id = new byte[(b & 0x1F) << 8 | stream.read()];
-                ByteStreams.readFully(stream, id);
-                return vf.createBNode(new String(id, Charsets.UTF_8));
-
-            } else if (hi == HI_URI) {
-                if ((b & 0x10) != 0) {
-                    final byte[] name = new byte[(b & 0xF) << 8 | stream.read()];
-                    final String ns = nsArray[stream.read()];
-                    ByteStreams.readFully(stream, name);
-                    return vf.createURI(ns, new String(name, Charsets.UTF_8));
-                } else {
-                    final byte[] str = new byte[(b & 0xF) << 8 | stream.read()];
-                    ByteStreams.readFully(stream, str);
-                    return vf.createURI(new String(str, Charsets.UTF_8));
-                }
-
-            } else if (hi == HI_LITERAL) {
-                byte[] lang = null;
-                URI dt = null;
-                if ((b & 0x10) != 0) {
-                    lang = new byte[b & 0xF];
-                    ByteStreams.readFully(stream, lang);
-                } else if ((b & 0x1) != 0) {
-                    dt = DT_MAP.inverse().get(stream.read());
-                } else if ((b & 0x2) != 0) {
-                    dt = (URI) read(nsArray, stream);
-                }
-                final byte[] label = new byte[stream.read() << 16 | stream.read() << 8
-                        | stream.read()];
-                ByteStreams.readFully(stream, label);
-                final String labelStr = new String(label, Charsets.UTF_8);
-                if (lang != null) {
-                    return vf.createLiteral(labelStr, new String(lang, Charsets.UTF_8));
-                } else if (dt != null) {
-                    return vf.createLiteral(labelStr, dt);
-                } else {
-                    return vf.createLiteral(labelStr);
+    private static File shardFile(final File file, final int shard, final int numShards) {
+        if (numShards == 1) {
+            return file;
+        }
+        // Stores replace the extension of the supplied file (e.g., Sparkey uses .spi / .spl)
+        return new File(file.getParentFile(), shardBase(file) + "-" + shard + "-of-" + numShards
+                + ".kq");
+    }
+
+    private static List<File> shardFiles(final File file) {
+        // A single index file takes precedence; otherwise look for a set of shards
+        if (KeyQuadStore.detect(file) == null) {
+            final Pattern pattern = Pattern.compile(Pattern.quote(shardBase(file))
+                    + "-0-of-(\\d+)\\.\\w+");
+            final File[] candidates = file.getAbsoluteFile().getParentFile().listFiles();
+            for (final File candidate : candidates != null ? candidates : new File[0]) {
+                final Matcher matcher = pattern.matcher(candidate.getName());
+                if (matcher.matches()) {
+                    final int numShards = Integer.parseInt(matcher.group(1));
+                    final List<File> files = Lists.newArrayListWithCapacity(numShards);
+                    for (int i = 0; i < numShards; ++i) {
+                        files.add(shardFile(file.getAbsoluteFile(), i, numShards));
+                    }
+                    return files;
                 }
+            }
+        }
+        return ImmutableList.of(file);
+    }
 
+    private static File bloomFile(final File shardFile) {
+        return KeyQuadStore.changeExtension(shardFile, ".bloom");
+    }
+
+    private static void writeBloomFilter(final KeyQuadStore store, final File shardFile)
+            throws IOException {
+        try (KeyQuadStore.Reader reader = store.openReader(shardFile)) {
+            final BloomFilter<byte[]> filter = BloomFilter.create(Funnels.byteArrayFunnel(),
+                    Math.max(1L, reader.size()), BLOOM_FPP);
+            reader.forEachKey(filter::put);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    bloomFile(shardFile)))) {
+                filter.writeTo(out);
+            }
+        }
+    }
+
+    private static String shardBase(final File file) {
+        final String name = file.getName();
+        final int index = name.lastIndexOf('.');
+        return index < 0 ? name : name.substring(0, index);
+    }
+
+    @Nullable
+    private static Value read(final int version, final String[] nsArray,
+            @Nullable final ValueCache cache, final ByteBuffer buffer) {
+
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final int b = buffer.get() & 0xFF;
+        final int hi = b & 0xE0;
+
+        if (hi == HI_NULL) {
+            return null;
+
+        } else if (hi == HI_BNODE) {
+            final int length = version == 1 ? (b & 0x1F) << 8 | buffer.get() & 0xFF
+                    : readVarint(buffer);
+            return vf.createBNode(readString(buffer, length));
+
+        } else if (hi == HI_URI) {
+            final int length;
+            final String ns;
+            if (version == 1) {
+                length = (b & 0xF) << 8 | buffer.get() & 0xFF;
+                ns = (b & 0x10) != 0 ? nsArray[buffer.get() & 0xFF] : "";
             } else {
-                throw new Error("Invalid marker: " + b);
+                ns = (b & 0x10) != 0 ? nsArray[readVarint(buffer)] : "";
+                length = readVarint(buffer);
+            }
+            return cache != null ? cache.getURI(ns, buffer, length) //
+                    : createURI(ns, readString(buffer, length));
+
+        } else if (hi == HI_LITERAL) {
+            String lang = null;
+            URI dt = null;
+            if ((b & 0x10) != 0) {
+                lang = readString(buffer, version == 1 ? b & 0xF : readVarint(buffer));
+            } else if ((b & 0x1) != 0) {
+                dt = DT_MAP.inverse().get(buffer.get() & 0xFF);
+            } else if ((b & 0x2) != 0) {
+                dt = (URI) read(version, nsArray, cache, buffer);
+            }
+            final int length = version == 1 ? (buffer.get() & 0xFF) << 16
+                    | (buffer.get() & 0xFF) << 8 | buffer.get() & 0xFF : readVarint(buffer);
+            final String label = readString(buffer, length);
+            if (lang != null) {
+                return vf.createLiteral(label, lang);
+            } else if (dt != null) {
+                return vf.createLiteral(label, dt);
+            } else {
+                return vf.createLiteral(label);
             }
 
-        } catch (final IOException ex) {
-            throw new Error(ex);
+        } else {
+            throw new Error("Invalid marker: " + b);
+        }
+    }
+
+    private static URI createURI(final String ns, final String name) {
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        return ns.isEmpty() ? vf.createURI(name) : vf.createURI(ns, name);
+    }
+
+    private static String readString(final ByteBuffer buffer, final int length) {
+        if (buffer.hasArray()) {
+            final String result = new String(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), length, Charsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return result;
+        } else {
+            final byte[] bytes = new byte[length]; // faster than decoding the buffer directly
+            buffer.get(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+    }
+
+    private static int readVarint(final ByteBuffer buffer) {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            final int b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream stream, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            stream.write(remaining & 0x7F | 0x80);
+            remaining >>>= 7;
         }
+        stream.write(remaining);
     }
 
-    private static ByteArrayOutputStream write(final Map<String, Integer> nsMap,
-            final ByteArrayOutputStream stream, final Value value) {
+    private static ByteArrayOutputStream write(final int version,
+            final Map<String, Integer> nsMap, final ByteArrayOutputStream stream,
+            final Value value) {
 
         if (value == null) {
             stream.write(HI_NULL);
 
         } else if (value instanceof BNode) {
             final byte[] id = ((BNode) value).getID().getBytes(Charsets.UTF_8);
-            Preconditions.checkArgument(id.length <= 0x1FFF);
-            stream.write(HI_BNODE | id.length >>> 8);
-            stream.write(id.length & 0xFF);
+            if (version == 1) {
+                Preconditions.checkArgument(id.length <= 0x1FFF);
+                stream.write(HI_BNODE | id.length >>> 8);
+                stream.write(id.length & 0xFF);
+            } else {
+                stream.write(HI_BNODE);
+                writeVarint(stream, id.length);
+            }
             stream.write(id, 0, id.length);
 
         } else if (value instanceof URI) {
             final URI uri = (URI) value;
             final Integer nsID = nsMap.get(uri.getNamespace());
-            if (nsID != null && nsID <= 0xFF) {
+            if (version > 1) {
+                final byte[] str = (nsID != null ? uri.getLocalName() : uri.stringValue())
+                        .getBytes(Charsets.UTF_8);
+                stream.write(nsID != null ? HI_URI | 0x10 : HI_URI);
+                if (nsID != null) {
+                    writeVarint(stream, nsID);
+                }
+                writeVarint(stream, str.length);
+                stream.write(str, 0, str.length);
+            } else if (nsID != null && nsID <= 0xFF) {
                 final byte[] name = uri.getLocalName().getBytes(Charsets.UTF_8);
                 Preconditions.checkArgument(name.length <= 0xFFF);
                 stream.write(HI_URI | 0x10 | name.length >>> 8);
@@ -346,8 +694,13 @@ public final class KeyQuadIndex implements Closeable {
             final Literal lit = (Literal) value;
             if (lit.getLanguage() != null) {
                 final byte[] lang = lit.getLanguage().getBytes(Charsets.UTF_8);
-                Preconditions.checkArgument(lang.length <= 0x0F);
-                stream.write(HI_LITERAL | 0x10 | lang.length);
+                if (version == 1) {
+                    Preconditions.checkArgument(lang.length <= 0x0F);
+                    stream.write(HI_LITERAL | 0x10 | lang.length);
+                } else {
+                    stream.write(HI_LITERAL | 0x10);
+                    writeVarint(stream, lang.length);
+                }
                 stream.write(lang, 0, lang.length);
             } else if (lit.getDatatype() == null || lit.getDatatype().equals(XMLSchema.STRING)) {
                 stream.write(HI_LITERAL);
@@ -358,39 +711,44 @@ public final class KeyQuadIndex implements Closeable {
                     stream.write(dtID);
                 } else {
                     stream.write(HI_LITERAL | 0x2);
-                    write(nsMap, stream, lit.getDatatype());
+                    write(version, nsMap, stream, lit.getDatatype());
                 }
             }
             final byte[] label = lit.getLabel().getBytes(Charsets.UTF_8);
-            Preconditions.checkArgument(label.length < 0xFFFFFF);
-            stream.write(label.length >>> 16);
-            stream.write(label.length >>> 8 & 0xFF);
-            stream.write(label.length & 0xFF);
+            if (version == 1) {
+                Preconditions.checkArgument(label.length < 0xFFFFFF);
+                stream.write(label.length >>> 16);
+                stream.write(label.length >>> 8 & 0xFF);
+                stream.write(label.length & 0xFF);
+            } else {
+                writeVarint(stream, label.length);
+            }
             stream.write(label, 0, label.length);
         }
 
         return stream;
     }
 
-    private static void read(final String[] nsArray, final ByteArrayInputStream stream,
-            final RDFHandler handler) throws RDFHandlerException {
+    private static void read(final int version, final String[] nsArray,
+            @Nullable final ValueCache cache, final ByteBuffer buffer, final RDFHandler handler)
+            throws RDFHandlerException {
         final Value[] values = new Value[4];
         int index = 0;
         while (true) {
-            stream.mark(1);
-            final int hi = stream.read() & 0xFF;
+            final int hi = buffer.get(buffer.position()) & 0xFF; // peek next marker
             if (hi == HI_END) {
                 break;
             } else if (hi == HI_END_C) {
                 index = 0;
+                buffer.get();
             } else if (hi == HI_END_S) {
                 index = 1;
+                buffer.get();
             } else if (hi == HI_END_P) {
                 index = 2;
-            } else {
-                stream.reset();
+                buffer.get();
             }
-            values[index++] = read(nsArray, stream);
+            values[index++] = read(version, nsArray, cache, buffer);
             if (index == 4) {
                 handler.handleStatement(Statements.VALUE_FACTORY.createStatement(
                         (Resource) values[1], (URI) values[2], values[3], (Resource) values[0]));
@@ -399,8 +757,9 @@ public final class KeyQuadIndex implements Closeable {
         }
     }
 
-    private static ByteArrayOutputStream write(final Map<String, Integer> nsMap,
-            final ByteArrayOutputStream stream, final Iterable<Statement> stmts) {
+    private static ByteArrayOutputStream write(final int version,
+            final Map<String, Integer> nsMap, final ByteArrayOutputStream stream,
+            final Iterable<Statement> stmts) {
         Statement lastStmt = null;
         for (final Statement stmt : Ordering.from(
                 Statements.statementComparator("cspo", Statements.valueComparator())).sortedCopy(
@@ -410,24 +769,24 @@ public final class KeyQuadIndex implements Closeable {
             final boolean sameS = sameC && lastStmt.getSubject().equals(stmt.getSubject());
             final boolean sameP = sameS && lastStmt.getPredicate().equals(stmt.getPredicate());
             if (sameP) {
-                write(nsMap, stream, stmt.getObject());
+                write(version, nsMap, stream, stmt.getObject());
             } else if (sameS) {
                 stream.write(HI_END_P);
-                write(nsMap, stream, stmt.getPredicate());
-                write(nsMap, stream, stmt.getObject());
+                write(version, nsMap, stream, stmt.getPredicate());
+                write(version, nsMap, stream, stmt.getObject());
             } else if (sameC) {
                 stream.write(HI_END_S);
-                write(nsMap, stream, stmt.getSubject());
-                write(nsMap, stream, stmt.getPredicate());
-                write(nsMap, stream, stmt.getObject());
+                write(version, nsMap, stream, stmt.getSubject());
+                write(version, nsMap, stream, stmt.getPredicate());
+                write(version, nsMap, stream, stmt.getObject());
             } else {
                 if (lastStmt != null) {
                     stream.write(HI_END_C);
                 }
-                write(nsMap, stream, stmt.getContext());
-                write(nsMap, stream, stmt.getSubject());
-                write(nsMap, stream, stmt.getPredicate());
-                write(nsMap, stream, stmt.getObject());
+                write(version, nsMap, stream, stmt.getContext());
+                write(version, nsMap, stream, stmt.getSubject());
+                write(version, nsMap, stream, stmt.getPredicate());
+                write(version, nsMap, stream, stmt.getObject());
             }
             lastStmt = stmt;
         }
@@ -436,25 +795,47 @@ public final class KeyQuadIndex implements Closeable {
     }
 
     public static RDFHandler indexer(final File file, final StatementComponent component) {
+        return indexer(file, component, 1);
+    }
+
+    public static RDFHandler indexer(final File file, final StatementComponent component,
+            final int numShards) {
+        return indexer(file, component, numShards, VERSION);
+    }
+
+    public static RDFHandler indexer(final File file, final StatementComponent component,
+            final int numShards, final int version) {
+        return indexer(file, component, numShards, version, KeyQuadStore.createSparkeyStore());
+    }
+
+    public static RDFHandler indexer(final File file, final StatementComponent component,
+            final int numShards, final int version, final KeyQuadStore store) {
 
         Objects.requireNonNull(file);
         Objects.requireNonNull(component);
+        Objects.requireNonNull(store);
+        Preconditions.checkArgument(numShards > 0, "Invalid number of shards %s", numShards);
+        Preconditions.checkArgument(version >= 1 && version <= VERSION, "Invalid version %s",
+                version);
 
         final Map<String, Integer> nsMap = Maps.newHashMap();
 
-        final AtomicReference<SparkeyWriter> writerRef = new AtomicReference<SparkeyWriter>();
+        // Each shard has its own writer, locked independently, so that partitions reduced in
+        // parallel are written concurrently unless they happen to fall in the same shard
+        final KeyQuadStore.Writer[] writers = new KeyQuadStore.Writer[numShards];
         final Reducer reducer = new Reducer() {
 
             @Override
             public void reduce(final Value key, final Statement[] stmts, final RDFHandler handler)
                     throws RDFHandlerException {
-                final byte[] keyBytes = write(nsMap, new ByteArrayOutputStream(), key)
+                final byte[] keyBytes = write(version, nsMap, new ByteArrayOutputStream(), key)
                         .toByteArray();
-                final byte[] stmtsBytes = write(nsMap, new ByteArrayOutputStream(),
+                final byte[] stmtsBytes = write(version, nsMap, new ByteArrayOutputStream(),
                         Arrays.asList(stmts)).toByteArray();
-                synchronized (writerRef) {
+                final KeyQuadStore.Writer writer = writers[shardOf(keyBytes, numShards)];
+                synchronized (writer) {
                     try {
-                        writerRef.get().put(keyBytes, stmtsBytes);
+                        writer.put(keyBytes, stmtsBytes);
                     } catch (final Throwable ex) {
                         throw new RDFHandlerException(ex);
                     }
@@ -470,11 +851,6 @@ public final class KeyQuadIndex implements Closeable {
 
             private final Set<String> namespaces = Sets.newConcurrentHashSet();
 
-            @Override
-            public void startRDF() throws RDFHandlerException {
-                super.startRDF();
-            }
-
             @Override
             public void handleStatement(final Statement stmt) throws RDFHandlerException {
                 this.namespaces.add(stmt.getPredicate().getNamespace());
@@ -501,23 +877,59 @@ public final class KeyQuadIndex implements Closeable {
                 }
 
                 try {
-                    writerRef.set(Sparkey.createNew(file, CompressionType.SNAPPY, 4096));
-                    writerRef.get().put(NS_KEY,
-                            Joiner.on('\n').join(nsList).getBytes(Charsets.UTF_8));
+                    // Every shard stores the namespace list, so to be readable on its own
+                    final byte[] nsBytes = Joiner.on('\n').join(nsList).getBytes(Charsets.UTF_8);
+                    for (int i = 0; i < numShards; ++i) {
+                        writers[i] = store.createWriter(shardFile(file, i, numShards));
+                        writers[i].put(NS_KEY, nsBytes);
+                        if (version > 1) {
+                            writers[i].put(VERSION_KEY, new byte[] { (byte) version });
+                        }
+                    }
 
                     super.endRDF();
 
-                    writerRef.get().flush();
-                    writerRef.get().writeHash();
-                    writerRef.get().close();
                 } catch (final IOException ex) {
                     throw new RDFHandlerException(ex);
                 }
+
+                // Build the hash tables and Bloom filters of the shards in parallel
+                final List<Runnable> finalizers = Lists.newArrayList();
+                for (int i = 0; i < numShards; ++i) {
+                    final KeyQuadStore.Writer writer = writers[i];
+                    final File shardFile = shardFile(file, i, numShards);
+                    finalizers.add(() -> {
+                        try {
+                            writer.close();
+                            writeBloomFilter(store, shardFile);
+                        } catch (final IOException ex) {
+                            throw Throwables.propagate(ex);
+                        }
+                    });
+                }
+                Environment.run(finalizers);
             }
 
         };
     }
 
+    /**
+     * Returns a builder for an indexer that groups quads by key via external sorting, using
+     * bounded memory. Differently from {@link #indexer(File, StatementComponent)}, the returned
+     * indexer assigns namespace IDs on the fly, encodes each quad as soon as it is received and
+     * buffers (key, quad) records in memory up to a configurable budget, after which they are
+     * sorted and spilled to disk as runs (one per shard). At the end of the input, the runs of
+     * each shard are merged in parallel via a k-way merge, grouping the quads of each key and
+     * writing them directly into the shard store.
+     *
+     * @param file
+     *            the index file to create
+     * @return the created builder
+     */
+    public static Builder builder(final File file) {
+        return new Builder(file);
+    }
+
     public static void main(final String... args) {
         try {
             LogManager.getLogManager().reset();
@@ -534,6 +946,23 @@ public final class KeyQuadIndex implements Closeable {
                     .withOption("r", "recursive", "whether to recurse into input directories")
                     .withOption("o", "output", "output file name", "FILE", CommandLine.Type.FILE,
                             true, false, true)
+                    .withOption("f", "format",
+                            "the encoding version, 1 or 2 (default: " + VERSION + ")", "NUM",
+                            CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption("b", "backend",
+                            "the storage backend: sparkey, hash, hash-snappy (default: sparkey)",
+                            "NAME", CommandLine.Type.STRING, true, false, false)
+                    .withOption("m", "memory",
+                            "the memory budget for buffering quads before spilling them to "
+                                    + "disk, in MB; up to twice this memory is used while a "
+                                    + "buffer is spilled (default: 1/4 of max heap)", "MB",
+                            CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption("t", "tmp",
+                            "the directory for temporary files (default: output directory)",
+                            "DIR", CommandLine.Type.DIRECTORY_EXISTING, true, false, false)
+                    .withOption("n", "shards",
+                            "the number of shards (files) to split the index into (default: 1)",
+                            "NUM", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
                     .withHeader(
                             "Read RDF quads, split them into partitions by component "
                                     + "and index the partitions in a binary file for fast lookup")
@@ -544,6 +973,13 @@ public final class KeyQuadIndex implements Closeable {
                     "c", String.class, "s").charAt(0));
             final boolean recursive = cmd.hasOption("r");
             final File output = cmd.getOptionValue("o", File.class);
+            final int numShards = cmd.getOptionValue("n", Integer.class, 1);
+            final int version = cmd.getOptionValue("f", Integer.class, VERSION);
+            final KeyQuadStore store = KeyQuadStore.forName(cmd.getOptionValue("b",
+                    String.class, "sparkey"));
+            final long memoryBudget = cmd.hasOption("m") ? cmd.getOptionValue("m", Integer.class)
+                    * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 4;
+            final File tempDirectory = cmd.getOptionValue("t", File.class);
             final List<File> files = cmd.getArgs(File.class);
 
             // Expand file list if recursive
@@ -560,7 +996,9 @@ public final class KeyQuadIndex implements Closeable {
             }
 
             // Build the indexer
-            final RDFHandler indexer = indexer(output, component);
+            final RDFHandler indexer = builder(output).withComponent(component)
+                    .withShards(numShards).withVersion(version).withStore(store)
+                    .withMemoryBudget(memoryBudget).withTempDirectory(tempDirectory).build();
 
             // Run the indexer
             RDFProcessors.read(true, true, null, null,
@@ -573,4 +1011,665 @@ public final class KeyQuadIndex implements Closeable {
         }
     }
 
+    public static final class Builder {
+
+        private final File file;
+
+        private StatementComponent component;
+
+        private int numShards;
+
+        private int version;
+
+        private KeyQuadStore store;
+
+        private long memoryBudget;
+
+        @Nullable
+        private File tempDirectory;
+
+        Builder(final File file) {
+            this.file = Objects.requireNonNull(file);
+            this.component = StatementComponent.SUBJECT;
+            this.numShards = 1;
+            this.version = VERSION;
+            this.store = KeyQuadStore.createSparkeyStore();
+            this.memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+            this.tempDirectory = null;
+        }
+
+        public Builder withComponent(final StatementComponent component) {
+            this.component = Objects.requireNonNull(component);
+            return this;
+        }
+
+        public Builder withShards(final int numShards) {
+            Preconditions.checkArgument(numShards > 0, "Invalid number of shards %s", numShards);
+            this.numShards = numShards;
+            return this;
+        }
+
+        public Builder withVersion(final int version) {
+            Preconditions.checkArgument(version >= 1 && version <= VERSION, "Invalid version %s",
+                    version);
+            this.version = version;
+            return this;
+        }
+
+        public Builder withStore(final KeyQuadStore store) {
+            this.store = Objects.requireNonNull(store);
+            return this;
+        }
+
+        /**
+         * Sets the estimated heap memory, in bytes, used to buffer quads before sorting and
+         * spilling them to a run file on disk. As quads keep being buffered while a full buffer
+         * is spilled, indexing uses up to twice this memory; threads adding quads block if the
+         * buffer fills up again before the previous spill completes.
+         *
+         * @param memoryBudget
+         *            the memory budget in bytes, default 1/4 of the max heap size
+         * @return this builder object, for call chaining
+         */
+        public Builder withMemoryBudget(final long memoryBudget) {
+            Preconditions.checkArgument(memoryBudget > 0, "Invalid memory budget %s",
+                    memoryBudget);
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        public Builder withTempDirectory(@Nullable final File tempDirectory) {
+            this.tempDirectory = tempDirectory;
+            return this;
+        }
+
+        public RDFHandler build() {
+            return new SortingIndexer(this);
+        }
+
+    }
+
+    private static final class SortingIndexer extends AbstractRDFHandler {
+
+        private static final long PROGRESS_INTERVAL = 10000L;
+
+        private static final int RECORD_OVERHEAD = 64; // estimated per-record heap overhead
+
+        private static final int MAX_MERGE_RUNS = 64; // max runs merged at once (open files)
+
+        private static final Comparator<byte[]> BYTES_COMPARATOR = UnsignedBytes
+                .lexicographicalComparator();
+
+        private final File file;
+
+        private final StatementComponent component;
+
+        private final int numShards;
+
+        private final int version;
+
+        private final KeyQuadStore store;
+
+        private final long memoryBudget;
+
+        private final File tempDirectory;
+
+        private final Map<String, Integer> nsMap;
+
+        private final AtomicInteger nsCounter;
+
+        private final AtomicInteger runCounter;
+
+        private final AtomicLong numQuads;
+
+        private final AtomicLong numKeys;
+
+        private final AtomicLong lastLogTs;
+
+        private final List<List<File>> runs;
+
+        private List<Record> buffer;
+
+        private long bufferSize;
+
+        private boolean spilling; // whether a full buffer is being spilled (guarded by this)
+
+        private File runDirectory;
+
+        private long startTs;
+
+        private long mergeTs;
+
+        SortingIndexer(final Builder builder) {
+            this.file = builder.file;
+            this.component = builder.component;
+            this.numShards = builder.numShards;
+            this.version = builder.version;
+            this.store = builder.store;
+            this.memoryBudget = builder.memoryBudget;
+            this.tempDirectory = builder.tempDirectory != null ? builder.tempDirectory
+                    : builder.file.getAbsoluteFile().getParentFile();
+            this.nsMap = new ConcurrentHashMap<>();
+            this.nsCounter = new AtomicInteger();
+            this.runCounter = new AtomicInteger();
+            this.numQuads = new AtomicLong();
+            this.numKeys = new AtomicLong();
+            this.lastLogTs = new AtomicLong();
+            this.runs = Lists.newArrayList();
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+            this.nsMap.clear();
+            this.nsCounter.set(0);
+            this.runCounter.set(0);
+            this.numQuads.set(0L);
+            this.numKeys.set(0L);
+            this.runs.clear();
+            for (int i = 0; i < this.numShards; ++i) {
+                this.runs.add(Lists.newArrayList());
+            }
+            this.buffer = Lists.newArrayList();
+            this.bufferSize = 0L;
+            this.spilling = false;
+            this.startTs = System.currentTimeMillis();
+            this.lastLogTs.set(this.startTs);
+            try {
+                this.runDirectory = java.nio.file.Files.createTempDirectory(
+                        this.tempDirectory.toPath(), "kq-runs-").toFile();
+            } catch (final IOException ex) {
+                throw new RDFHandlerException(ex);
+            }
+        }
+
+        @Override
+        public void handleStatement(final Statement stmt) throws RDFHandlerException {
+
+            // Quads without a key (i.e., without context when indexing by context) are ignored
+            final Value key = this.component.apply(stmt);
+            if (key == null) {
+                return;
+            }
+
+            // Assign IDs to new namespaces before encoding, so that encodings never change
+            register(stmt.getSubject());
+            register(stmt.getPredicate());
+            register(stmt.getObject());
+            register(stmt.getContext());
+            if (stmt.getObject() instanceof Literal) {
+                register(((Literal) stmt.getObject()).getDatatype());
+            }
+
+            final byte[] keyBytes = write(this.version, this.nsMap, new ByteArrayOutputStream(),
+                    key).toByteArray();
+            final byte[] quadBytes = write(this.version, this.nsMap, new ByteArrayOutputStream(),
+                    Collections.singletonList(stmt)).toByteArray();
+            final Record record = new Record(keyBytes, quadBytes,
+                    shardOf(keyBytes, this.numShards));
+
+            // Buffer the record, spilling the buffer (outside the lock) once it gets too large.
+            // At most one buffer is spilled at a time: if the new buffer fills up before the
+            // spill completes, wait for it, so that at most 2 buffers are kept in memory
+            List<Record> recordsToSpill = null;
+            synchronized (this) {
+                while (this.spilling && this.bufferSize >= this.memoryBudget) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RDFHandlerException("Interrupted", ex);
+                    }
+                }
+                this.buffer.add(record);
+                this.bufferSize += keyBytes.length + quadBytes.length + RECORD_OVERHEAD;
+                if (this.bufferSize >= this.memoryBudget && !this.spilling) {
+                    recordsToSpill = this.buffer;
+                    this.buffer = Lists.newArrayList();
+                    this.bufferSize = 0L;
+                    this.spilling = true;
+                }
+            }
+            if (recordsToSpill != null) {
+                try {
+                    spill(recordsToSpill);
+                } finally {
+                    synchronized (this) {
+                        this.spilling = false;
+                        notifyAll();
+                    }
+                }
+            }
+
+            final long numQuads = this.numQuads.incrementAndGet();
+            final long ts = System.currentTimeMillis();
+            final long lastTs = this.lastLogTs.get();
+            if (ts - lastTs >= PROGRESS_INTERVAL && this.lastLogTs.compareAndSet(lastTs, ts)) {
+                LOGGER.info("Read {} quads ({} quads/s), {} runs spilled", numQuads,
+                        String.format("%.2f", numQuads * 1000.0 / (ts - this.startTs)),
+                        this.runCounter.get());
+            }
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+
+            try {
+                // Spill remaining records and collect namespaces in ID order
+                spill(this.buffer);
+                this.buffer = null;
+                final String[] nsArray = new String[this.nsCounter.get()];
+                for (final Map.Entry<String, Integer> entry : this.nsMap.entrySet()) {
+                    nsArray[entry.getValue()] = entry.getKey();
+                }
+                final byte[] nsBytes = Joiner.on('\n').join(nsArray).getBytes(Charsets.UTF_8);
+                LOGGER.info("Read {} quads, {} namespaces, {} runs spilled; merging",
+                        this.numQuads.get(), nsArray.length, this.runCounter.get());
+
+                // Merge the runs of each shard into its store, in parallel
+                this.mergeTs = System.currentTimeMillis();
+                this.lastLogTs.set(this.mergeTs);
+                final List<Runnable> mergers = Lists.newArrayList();
+                for (int i = 0; i < this.numShards; ++i) {
+                    final File shardFile = shardFile(this.file, i, this.numShards);
+                    final List<File> shardRuns = this.runs.get(i);
+                    mergers.add(() -> {
+                        try {
+                            try (KeyQuadStore.Writer writer = this.store
+                                    .createWriter(shardFile)) {
+                                writer.put(NS_KEY, nsBytes);
+                                if (this.version > 1) {
+                                    writer.put(VERSION_KEY, new byte[] { (byte) this.version });
+                                }
+                                merge(shardRuns, nsArray, writer);
+                            }
+                            writeBloomFilter(this.store, shardFile);
+                        } catch (final IOException ex) {
+                            throw Throwables.propagate(ex);
+                        }
+                    });
+                }
+                Environment.run(mergers);
+
+                final long ts = System.currentTimeMillis();
+                LOGGER.info("Indexed {} quads, {} keys in {} ms ({} quads/s, merge {} keys/s)",
+                        this.numQuads.get(), this.numKeys.get(), ts - this.startTs,
+                        String.format("%.2f", this.numQuads.get() * 1000.0
+                                / Math.max(1L, ts - this.startTs)), String.format("%.2f",
+                                this.numKeys.get() * 1000.0 / Math.max(1L, ts - this.mergeTs)));
+
+            } catch (final RuntimeException ex) {
+                throw new RDFHandlerException(ex);
+
+            } finally {
+                for (final File run : MoreObjects.firstNonNull(this.runDirectory.listFiles(),
+                        new File[0])) {
+                    run.delete();
+                }
+                this.runDirectory.delete();
+            }
+        }
+
+        private void register(@Nullable final Value value) {
+            if (value instanceof URI) {
+                final String ns = ((URI) value).getNamespace();
+                if (!this.nsMap.containsKey(ns)) {
+                    this.nsMap.computeIfAbsent(ns, k -> this.nsCounter.getAndIncrement());
+                }
+            }
+        }
+
+        private void spill(final List<Record> records) {
+
+            // Sort records by shard, key and quad, so that duplicate quads become adjacent
+            Collections.sort(records);
+
+            // Write a run file for each shard with records
+            try {
+                int start = 0;
+                while (start < records.size()) {
+                    final int shard = records.get(start).shard;
+                    int end = start + 1;
+                    while (end < records.size() && records.get(end).shard == shard) {
+                        ++end;
+                    }
+                    final File runFile = new File(this.runDirectory, "run-"
+                            + this.runCounter.incrementAndGet() + "-" + shard + ".bin");
+                    try (DataOutputStream out = new DataOutputStream(new SnappyOutputStream(
+                            new FileOutputStream(runFile)))) {
+                        out.writeInt(end - start);
+                        for (final Record record : records.subList(start, end)) {
+                            writeRecord(out, record.key, record.quad);
+                        }
+                    }
+                    synchronized (this.runs) {
+                        this.runs.get(shard).add(runFile);
+                    }
+                    start = end;
+                }
+            } catch (final IOException ex) {
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        private void merge(final List<File> shardRunFiles, final String[] nsArray,
+                final KeyQuadStore.Writer writer) throws IOException {
+
+            // Merge runs in groups into intermediate runs, until few enough are left to be opened
+            // at once, so to bound the number of open files
+            List<File> runFiles = shardRunFiles;
+            while (runFiles.size() > MAX_MERGE_RUNS) {
+                final List<File> mergedRunFiles = Lists.newArrayList();
+                for (final List<File> group : Lists.partition(runFiles, MAX_MERGE_RUNS)) {
+                    mergedRunFiles.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+                }
+                runFiles = mergedRunFiles;
+            }
+
+            // Open all the runs, ordering them by their current record
+            final PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1,
+                    runFiles.size()));
+            for (final File runFile : runFiles) {
+                final RunReader reader = new RunReader(runFile);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            // Consume records in order, grouping quads by key and dropping duplicates
+            byte[] key = null;
+            final List<byte[]> quads = Lists.newArrayList();
+            while (!queue.isEmpty()) {
+                final RunReader reader = queue.poll();
+                if (key == null || !Arrays.equals(key, reader.key)) {
+                    if (key != null) {
+                        put(writer, nsArray, key, quads);
+                    }
+                    key = reader.key;
+                    quads.clear();
+                }
+                if (quads.isEmpty() || !Arrays.equals(quads.get(quads.size() - 1), reader.quad)) {
+                    quads.add(reader.quad);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                    reader.file.delete();
+                }
+            }
+            if (key != null) {
+                put(writer, nsArray, key, quads);
+            }
+        }
+
+        private File mergeRuns(final List<File> runFiles) throws IOException {
+
+            // Open the runs, counting their records, and merge them into a new run keeping all
+            // records (duplicates are dropped by the final merge)
+            final File mergedFile = new File(this.runDirectory, "run-"
+                    + this.runCounter.incrementAndGet() + ".bin");
+            final PriorityQueue<RunReader> queue = new PriorityQueue<>(runFiles.size());
+            try {
+                int numRecords = 0;
+                for (final File runFile : runFiles) {
+                    final RunReader reader = new RunReader(runFile);
+                    numRecords += reader.remaining;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                        runFile.delete();
+                    }
+                }
+                try (DataOutputStream out = new DataOutputStream(new SnappyOutputStream(
+                        new FileOutputStream(mergedFile)))) {
+                    out.writeInt(numRecords);
+                    while (!queue.isEmpty()) {
+                        final RunReader reader = queue.poll();
+                        writeRecord(out, reader.key, reader.quad);
+                        if (reader.next()) {
+                            queue.add(reader);
+                        } else {
+                            reader.close();
+                            reader.file.delete();
+                        }
+                    }
+                }
+            } finally {
+                for (final RunReader reader : queue) {
+                    reader.close();
+                }
+            }
+            return mergedFile;
+        }
+
+        private static void writeRecord(final DataOutputStream out, final byte[] key,
+                final byte[] quad) throws IOException {
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(quad.length);
+            out.write(quad);
+        }
+
+        private void put(final KeyQuadStore.Writer writer, final String[] nsArray,
+                final byte[] key, final List<byte[]> quads) throws IOException {
+
+            // Decode quads and re-encode them together, sharing common context / subject / pred
+            final List<Statement> stmts = Lists.newArrayListWithCapacity(quads.size());
+            try {
+                for (final byte[] quad : quads) {
+                    read(this.version, nsArray, null, ByteBuffer.wrap(quad),
+                            RDFHandlers.wrap(stmts));
+                }
+            } catch (final RDFHandlerException ex) {
+                throw new Error(ex);
+            }
+            writer.put(key, write(this.version, this.nsMap, new ByteArrayOutputStream(), stmts)
+                    .toByteArray());
+
+            final long numKeys = this.numKeys.incrementAndGet();
+            final long ts = System.currentTimeMillis();
+            final long lastTs = this.lastLogTs.get();
+            if (ts - lastTs >= PROGRESS_INTERVAL && this.lastLogTs.compareAndSet(lastTs, ts)) {
+                LOGGER.info("Merged {} keys ({} keys/s)", numKeys,
+                        String.format("%.2f", numKeys * 1000.0 / (ts - this.mergeTs)));
+            }
+        }
+
+        private static final class Record implements Comparable<Record> {
+
+            final byte[] key;
+
+            final byte[] quad;
+
+            final int shard;
+
+            Record(final byte[] key, final byte[] quad, final int shard) {
+                this.key = key;
+                this.quad = quad;
+                this.shard = shard;
+            }
+
+            @Override
+            public int compareTo(final Record other) {
+                int result = Integer.compare(this.shard, other.shard);
+                if (result == 0) {
+                    result = BYTES_COMPARATOR.compare(this.key, other.key);
+                    if (result == 0) {
+                        result = BYTES_COMPARATOR.compare(this.quad, other.quad);
+                    }
+                }
+                return result;
+            }
+
+        }
+
+        private static final class RunReader implements Comparable<RunReader>, Closeable {
+
+            final File file;
+
+            private final DataInputStream in;
+
+            private int remaining;
+
+            byte[] key;
+
+            byte[] quad;
+
+            RunReader(final File file) throws IOException {
+                this.file = file;
+                this.in = new DataInputStream(new SnappyInputStream(new FileInputStream(file)));
+                this.remaining = this.in.readInt();
+            }
+
+            boolean next() throws IOException {
+                if (this.remaining == 0) {
+                    return false;
+                }
+                --this.remaining;
+                this.key = new byte[this.in.readInt()];
+                this.in.readFully(this.key);
+                this.quad = new byte[this.in.readInt()];
+                this.in.readFully(this.quad);
+                return true;
+            }
+
+            @Override
+            public int compareTo(final RunReader other) {
+                final int result = BYTES_COMPARATOR.compare(this.key, other.key);
+                return result != 0 ? result : BYTES_COMPARATOR.compare(this.quad, other.quad);
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.in.close();
+            }
+
+        }
+
+    }
+
+    private static final class Probe implements Comparable<Probe> {
+
+        final byte[] key;
+
+        final int shard;
+
+        final long slot;
+
+        Probe(final byte[] key, final int shard, final long slot) {
+            this.key = key;
+            this.shard = shard;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(final Probe other) {
+            int result = Integer.compare(this.shard, other.shard);
+            if (result == 0) {
+                result = Long.compare(this.slot, other.slot);
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * A concurrent cache interning the URIs decoded from one or more {@code KeyQuadIndex}es.
+     *
+     * <p>
+     * URIs are looked up by namespace and encoded local name, before decoding it: on a hit, the
+     * same {@code URI} object is returned and no string is built, while on a miss the decoded URI
+     * replaces the entry previously stored in the same slot. Sharing URI objects reduces
+     * allocation and lets {@code equals()} succeed on identity checks. The cache is direct-mapped
+     * and lock-free; entries are immutable and may be published racily.
+     * </p>
+     */
+    public static final class ValueCache {
+
+        private final Entry[] entries;
+
+        private final int mask;
+
+        private ValueCache(final int size) {
+            int capacity = 1;
+            while (capacity < size) {
+                capacity <<= 1;
+            }
+            this.entries = new Entry[capacity];
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * Creates a new cache with the specified number of entries (rounded up to a power of
+         * two).
+         *
+         * @param size
+         *            the number of entries, greater than zero
+         * @return the created cache
+         */
+        public static ValueCache create(final int size) {
+            Preconditions.checkArgument(size > 0, "Invalid cache size %s", size);
+            return new ValueCache(size);
+        }
+
+        URI getURI(final String ns, final ByteBuffer buffer, final int length) {
+
+            // Hash namespace and name bytes, without decoding the latter
+            final int offset = buffer.position();
+            int hash = ns.hashCode();
+            for (int i = 0; i < length; ++i) {
+                hash = 31 * hash + buffer.get(offset + i);
+            }
+            hash ^= hash >>> 16;
+
+            // Return the cached URI, if any
+            final int slot = hash & this.mask;
+            final Entry entry = this.entries[slot];
+            if (entry != null && entry.hash == hash && entry.name.length == length
+                    && (entry.ns == ns || entry.ns.equals(ns))) {
+                boolean equal = true;
+                for (int i = 0; i < length; ++i) {
+                    if (entry.name[i] != buffer.get(offset + i)) {
+                        equal = false;
+                        break;
+                    }
+                }
+                if (equal) {
+                    buffer.position(offset + length);
+                    return entry.uri;
+                }
+            }
+
+            // Otherwise, decode the URI and store it in the cache
+            final byte[] name = new byte[length];
+            buffer.get(name);
+            final URI uri = createURI(ns, new String(name, Charsets.UTF_8));
+            this.entries[slot] = new Entry(hash, ns, name, uri);
+            return uri;
+        }
+
+        private static final class Entry {
+
+            final int hash;
+
+            final String ns;
+
+            final byte[] name;
+
+            final URI uri;
+
+            Entry(final int hash, final String ns, final byte[] name, final URI uri) {
+                this.hash = hash;
+                this.ns = ns;
+                this.name = name;
+                this.uri = uri;
+            }
+
+        }
+
+    }
+
 }
@@ -0,0 +1,716 @@
+package eu.fbk.ke4ir.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.spotify.sparkey.CompressionType;
+import com.spotify.sparkey.IndexHeader;
+import com.spotify.sparkey.Sparkey;
+import com.spotify.sparkey.SparkeyReader;
+import com.spotify.sparkey.SparkeyWriter;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * A persistent, immutable key-value store backing a {@link KeyQuadIndex} shard.
+ *
+ * <p>
+ * A store is written once via a {@link Writer} and then accessed via one or more {@link Reader}s.
+ * The files of a store are derived from a base file by replacing its extension (if any), so that
+ * different stores can share the same base file name. Two implementations are provided:
+ * <ul>
+ * <li>a Sparkey store (see {@link #createSparkeyStore()}), using Snappy block compression;</li>
+ * <li>a pure-Java hash store (see {@link #createHashStore(boolean)}), consisting of an
+ * open-addressing hash table and a data file, both accessed via memory mapping, with values
+ * stored either uncompressed (returned without copying) or individually compressed with Snappy.
+ * </li>
+ * </ul>
+ * </p>
+ */
+public abstract class KeyQuadStore {
+
+    private static final KeyQuadStore[] STORES = new KeyQuadStore[] { SparkeyStore.INSTANCE,
+            HashStore.UNCOMPRESSED, HashStore.COMPRESSED };
+
+    /**
+     * Returns the name of the store, as accepted by {@link #forName(String)}.
+     *
+     * @return the name
+     */
+    public abstract String getName();
+
+    /**
+     * Checks whether the supplied base file identifies an existing store of this kind.
+     *
+     * @param file
+     *            the base file
+     * @return true if the store exists
+     */
+    public abstract boolean exists(File file);
+
+    /**
+     * Creates a new store, overwriting any existing store of this kind at the same location.
+     *
+     * @param file
+     *            the base file
+     * @return a writer for populating the store, which is finalized on close
+     * @throws IOException
+     *             on failure
+     */
+    public abstract Writer createWriter(File file) throws IOException;
+
+    /**
+     * Opens an existing store.
+     *
+     * @param file
+     *            the base file
+     * @return a reader for the store, not thread safe (use {@link Reader#duplicate()} to obtain
+     *         additional readers for other threads)
+     * @throws IOException
+     *             on failure
+     */
+    public abstract Reader openReader(File file) throws IOException;
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Returns the Sparkey store, with Snappy compression over blocks of 4096 bytes.
+     *
+     * @return the Sparkey store
+     */
+    public static KeyQuadStore createSparkeyStore() {
+        return SparkeyStore.INSTANCE;
+    }
+
+    /**
+     * Returns the memory-mapped hash store.
+     *
+     * @param compressed
+     *            true if values have to be individually compressed with Snappy
+     * @return the hash store
+     */
+    public static KeyQuadStore createHashStore(final boolean compressed) {
+        return compressed ? HashStore.COMPRESSED : HashStore.UNCOMPRESSED;
+    }
+
+    /**
+     * Returns the store with the name specified (sparkey, hash, hash-snappy).
+     *
+     * @param name
+     *            the name of the store
+     * @return the corresponding store
+     * @throws IllegalArgumentException
+     *             if there is no store with the name specified
+     */
+    public static KeyQuadStore forName(final String name) {
+        for (final KeyQuadStore store : STORES) {
+            if (store.getName().equalsIgnoreCase(name.trim())) {
+                return store;
+            }
+        }
+        throw new IllegalArgumentException("Unknown store " + name);
+    }
+
+    /**
+     * Returns the store existing at the supplied base file, if any.
+     *
+     * @param file
+     *            the base file
+     * @return the existing store, or null if none exists
+     */
+    @Nullable
+    public static KeyQuadStore detect(final File file) {
+        for (final KeyQuadStore store : STORES) {
+            if (store.exists(file)) {
+                return store;
+            }
+        }
+        return null;
+    }
+
+    static File changeExtension(final File file, final String extension) {
+        // Same convention of Sparkey: replace what follows the last '.' of the name, if any
+        final String name = file.getName();
+        final int index = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (index < 0 ? name : name.substring(0, index))
+                + extension);
+    }
+
+    public abstract static class Reader implements Closeable {
+
+        /**
+         * Returns the value associated to the supplied key. The returned buffer is valid until
+         * the next call to this method.
+         *
+         * @param key
+         *            the key
+         * @return a buffer with the value between its position and limit, or null if the key is
+         *         not in the store
+         * @throws IOException
+         *             on failure
+         */
+        @Nullable
+        public abstract ByteBuffer get(byte[] key) throws IOException;
+
+        /**
+         * Returns a number such that probing keys in increasing order of it scans the store
+         * sequentially.
+         *
+         * @param key
+         *            the key
+         * @return the ordering number for the key, -1 if not supported
+         */
+        public abstract long slotOf(byte[] key);
+
+        /**
+         * Returns the number of entries in the store.
+         *
+         * @return the number of entries
+         */
+        public abstract long size();
+
+        /**
+         * Feeds the keys of all the entries in the store to the supplied consumer.
+         *
+         * @param consumer
+         *            the consumer
+         * @throws IOException
+         *             on failure
+         */
+        public abstract void forEachKey(Consumer<byte[]> consumer) throws IOException;
+
+        /**
+         * Returns another reader for the same store, sharing its resources. The returned reader
+         * is independent of this one and can be used by a different thread; it should be closed
+         * before closing this reader.
+         *
+         * @return the duplicate reader
+         */
+        public abstract Reader duplicate();
+
+        @Override
+        public abstract void close();
+
+    }
+
+    public abstract static class Writer implements Closeable {
+
+        /**
+         * Adds an entry to the store. Keys must be unique.
+         *
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         * @throws IOException
+         *             on failure
+         */
+        public abstract void put(byte[] key, byte[] value) throws IOException;
+
+        /**
+         * Finalizes the store, making it available to readers.
+         */
+        @Override
+        public abstract void close() throws IOException;
+
+    }
+
+    private static final class SparkeyStore extends KeyQuadStore {
+
+        static final SparkeyStore INSTANCE = new SparkeyStore();
+
+        @Override
+        public String getName() {
+            return "sparkey";
+        }
+
+        @Override
+        public boolean exists(final File file) {
+            return Sparkey.getIndexFile(file).exists();
+        }
+
+        @Override
+        public Writer createWriter(final File file) throws IOException {
+            final SparkeyWriter writer = Sparkey.createNew(file, CompressionType.SNAPPY, 4096);
+            return new Writer() {
+
+                @Override
+                public void put(final byte[] key, final byte[] value) throws IOException {
+                    writer.put(key, value);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.flush();
+                    writer.writeHash();
+                    writer.close();
+                }
+
+            };
+        }
+
+        @Override
+        public Reader openReader(final File file) throws IOException {
+            return new SparkeyStoreReader(Sparkey.open(file));
+        }
+
+    }
+
+    private static final class SparkeyStoreReader extends Reader {
+
+        private final SparkeyReader reader;
+
+        private final IndexHeader header;
+
+        private byte[] buffer;
+
+        SparkeyStoreReader(final SparkeyReader reader) {
+            this.reader = reader;
+            this.header = reader.getIndexHeader();
+            this.buffer = new byte[4096];
+        }
+
+        @Override
+        public ByteBuffer get(final byte[] key) throws IOException {
+            final SparkeyReader.Entry entry = this.reader.getAsEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            final int length = (int) entry.getValueLength();
+            if (this.buffer.length < length) {
+                this.buffer = new byte[Math.max(length, this.buffer.length * 2)];
+            }
+            ByteStreams.readFully(entry.getValueAsStream(), this.buffer, 0, length);
+            return ByteBuffer.wrap(this.buffer, 0, length);
+        }
+
+        @Override
+        public long slotOf(final byte[] key) {
+            // Replicates Sparkey slot computation for 32 bit hashes (used for stores with less
+            // than 2^23 entries); no ordering is supported for 64 bit hashes
+            if (this.header.getHashSize() != 4) {
+                return -1L;
+            }
+            final int hash = Hashing.murmur3_32(this.header.getHashSeed()).hashBytes(key).asInt();
+            return (hash & 0xFFFFFFFFL) % this.header.getHashCapacity();
+        }
+
+        @Override
+        public long size() {
+            return this.header.getNumEntries();
+        }
+
+        @Override
+        public void forEachKey(final Consumer<byte[]> consumer) {
+            for (final SparkeyReader.Entry entry : this.reader) {
+                consumer.accept(entry.getKey());
+            }
+        }
+
+        @Override
+        public Reader duplicate() {
+            return new SparkeyStoreReader(this.reader.duplicate());
+        }
+
+        @Override
+        public void close() {
+            this.reader.close();
+        }
+
+    }
+
+    private static final class HashStore extends KeyQuadStore {
+
+        static final HashStore UNCOMPRESSED = new HashStore(false);
+
+        static final HashStore COMPRESSED = new HashStore(true);
+
+        static final int MAGIC = 0x4B514831; // "KQH1"
+
+        static final int HEADER_SIZE = 32;
+
+        static final int FLAG_COMPRESSED = 1;
+
+        static final int SEGMENT_BITS = 30; // data mapped in segments of 1 GB
+
+        static final int SLOT_SEGMENT_BITS = 26; // slots mapped in segments of 2^26 x 16 bytes
+
+        private final boolean compressed;
+
+        private HashStore(final boolean compressed) {
+            this.compressed = compressed;
+        }
+
+        @Override
+        public String getName() {
+            return this.compressed ? "hash-snappy" : "hash";
+        }
+
+        @Override
+        public boolean exists(final File file) {
+            final File indexFile = changeExtension(file, ".kqi");
+            if (!indexFile.exists()) {
+                return false;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+                return in.readInt() == MAGIC
+                        && ((in.readInt() & FLAG_COMPRESSED) != 0) == this.compressed;
+            } catch (final IOException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        public Writer createWriter(final File file) throws IOException {
+            return new HashStoreWriter(changeExtension(file, ".kqi"),
+                    changeExtension(file, ".kqd"), this.compressed);
+        }
+
+        @Override
+        public Reader openReader(final File file) throws IOException {
+            return new HashStoreReader(changeExtension(file, ".kqi"),
+                    changeExtension(file, ".kqd"));
+        }
+
+        static long hash(final byte[] key) {
+            final long hash = Hashing.murmur3_128().hashBytes(key).asLong();
+            return hash == 0L ? 1L : hash; // 0 marks empty slots
+        }
+
+        static MappedByteBuffer[] map(final FileChannel channel, final long offset,
+                final long length, final int segmentBits, final MapMode mode) throws IOException {
+            final long segmentSize = 1L << segmentBits;
+            final int numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+            final MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; ++i) {
+                final long start = i * segmentSize;
+                segments[i] = channel.map(mode, offset + start,
+                        Math.min(segmentSize, length - start));
+            }
+            return segments;
+        }
+
+    }
+
+    private static final class HashStoreWriter extends Writer {
+
+        private final File indexFile;
+
+        private final File pairsFile;
+
+        private final boolean compressed;
+
+        private final OutputStream dataStream;
+
+        private final DataOutputStream pairsStream;
+
+        private final byte[] header;
+
+        private long offset;
+
+        private long numEntries;
+
+        HashStoreWriter(final File indexFile, final File dataFile, final boolean compressed)
+                throws IOException {
+            this.indexFile = indexFile;
+            this.pairsFile = new File(indexFile.getPath() + ".tmp");
+            this.compressed = compressed;
+            this.dataStream = new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16);
+            this.pairsStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.pairsFile), 1 << 16));
+            this.header = new byte[10];
+            this.offset = 0L;
+            this.numEntries = 0L;
+        }
+
+        @Override
+        public void put(final byte[] key, final byte[] value) throws IOException {
+
+            // Entry layout: varint key length, key, varint value length, (compressed) value
+            final byte[] data = this.compressed ? Snappy.compress(value) : value;
+            final int keyHeader = writeVarint(this.header, 0, key.length);
+            final int valueHeader = writeVarint(this.header, keyHeader, data.length) - keyHeader;
+            final long length = (long) keyHeader + key.length + valueHeader + data.length;
+            final long segmentSize = 1L << HashStore.SEGMENT_BITS;
+            Preconditions.checkArgument(length <= segmentSize, "Entry too large: %s bytes",
+                    length);
+
+            // Entries do not cross segment boundaries, so they can be read from a single buffer
+            final long remaining = segmentSize - (this.offset & segmentSize - 1);
+            if (length > remaining) {
+                for (long i = 0; i < remaining; ++i) {
+                    this.dataStream.write(0);
+                }
+                this.offset += remaining;
+            }
+
+            this.pairsStream.writeLong(HashStore.hash(key));
+            this.pairsStream.writeLong(this.offset);
+            this.dataStream.write(this.header, 0, keyHeader);
+            this.dataStream.write(key);
+            this.dataStream.write(this.header, keyHeader, valueHeader);
+            this.dataStream.write(data);
+            this.offset += length;
+            ++this.numEntries;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            this.dataStream.close();
+            this.pairsStream.close();
+
+            // Allocate a hash table with load factor at most 0.5
+            long capacity = 16;
+            while (capacity < this.numEntries * 2) {
+                capacity <<= 1;
+            }
+            final long mask = capacity - 1;
+
+            try (RandomAccessFile file = new RandomAccessFile(this.indexFile, "rw");
+                    DataInputStream pairs = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(this.pairsFile), 1 << 16))) {
+
+                file.setLength(HashStore.HEADER_SIZE + capacity * 16);
+                final FileChannel channel = file.getChannel();
+                final MappedByteBuffer[] slots = HashStore.map(channel, HashStore.HEADER_SIZE,
+                        capacity * 16, HashStore.SLOT_SEGMENT_BITS + 4, MapMode.READ_WRITE);
+
+                // Insert (hash, offset) pairs via linear probing
+                for (long i = 0; i < this.numEntries; ++i) {
+                    final long hash = pairs.readLong();
+                    final long offset = pairs.readLong();
+                    long slot = hash & mask;
+                    while (HashStoreReader.slotHash(slots, slot) != 0L) {
+                        slot = slot + 1 & mask;
+                    }
+                    final int position = (int) (slot & (1 << HashStore.SLOT_SEGMENT_BITS) - 1);
+                    final ByteBuffer segment = slots[(int) (slot >>> HashStore.SLOT_SEGMENT_BITS)];
+                    segment.putLong(position * 16, hash);
+                    segment.putLong(position * 16 + 8, offset);
+                }
+                for (final MappedByteBuffer segment : slots) {
+                    segment.force();
+                }
+
+                // Write the header last, so that incomplete stores are not recognized
+                final ByteBuffer header = ByteBuffer.allocate(HashStore.HEADER_SIZE);
+                header.putInt(HashStore.MAGIC);
+                header.putInt(this.compressed ? HashStore.FLAG_COMPRESSED : 0);
+                header.putLong(this.numEntries);
+                header.putLong(capacity);
+                header.putLong(this.offset);
+                header.flip();
+                channel.write(header, 0L);
+
+            } catch (final EOFException ex) {
+                throw new IOException("Truncated temporary file " + this.pairsFile, ex);
+            } finally {
+                this.pairsFile.delete();
+            }
+        }
+
+        private static int writeVarint(final byte[] buffer, final int offset, final int value) {
+            int index = offset;
+            int remaining = value;
+            while ((remaining & ~0x7F) != 0) {
+                buffer[index++] = (byte) (remaining & 0x7F | 0x80);
+                remaining >>>= 7;
+            }
+            buffer[index++] = (byte) remaining;
+            return index;
+        }
+
+    }
+
+    private static final class HashStoreReader extends Reader {
+
+        private final MappedByteBuffer[] slots;
+
+        private final MappedByteBuffer[] data;
+
+        private final long numEntries;
+
+        private final long mask;
+
+        private final boolean compressed;
+
+        @Nullable
+        private ByteBuffer buffer; // for decompressed values
+
+        HashStoreReader(final File indexFile, final File dataFile) throws IOException {
+            try (RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+                    RandomAccessFile data = new RandomAccessFile(dataFile, "r")) {
+                final int magic = index.readInt();
+                Preconditions.checkArgument(magic == HashStore.MAGIC, "Not a hash store: %s",
+                        indexFile);
+                this.compressed = (index.readInt() & HashStore.FLAG_COMPRESSED) != 0;
+                this.numEntries = index.readLong();
+                final long capacity = index.readLong();
+                final long dataLength = index.readLong();
+                this.mask = capacity - 1;
+                this.slots = HashStore.map(index.getChannel(), HashStore.HEADER_SIZE,
+                        capacity * 16, HashStore.SLOT_SEGMENT_BITS + 4, MapMode.READ_ONLY);
+                this.data = HashStore.map(data.getChannel(), 0L, dataLength,
+                        HashStore.SEGMENT_BITS, MapMode.READ_ONLY);
+            }
+        }
+
+        private HashStoreReader(final HashStoreReader reader) {
+            this.slots = reader.slots;
+            this.data = reader.data;
+            this.numEntries = reader.numEntries;
+            this.mask = reader.mask;
+            this.compressed = reader.compressed;
+        }
+
+        @Override
+        public ByteBuffer get(final byte[] key) throws IOException {
+
+            final long hash = HashStore.hash(key);
+            for (long slot = hash & this.mask;; slot = slot + 1 & this.mask) {
+
+                // Stop at the first empty slot; skip slots with different hashes
+                final long slotHash = slotHash(this.slots, slot);
+                if (slotHash == 0L) {
+                    return null;
+                } else if (slotHash != hash) {
+                    continue;
+                }
+
+                // Compare the key, using absolute reads on the shared segment
+                final long offset = slotOffset(this.slots, slot);
+                final ByteBuffer segment = this.data[(int) (offset >>> HashStore.SEGMENT_BITS)];
+                int position = (int) (offset & (1 << HashStore.SEGMENT_BITS) - 1);
+                final int keyLength = readVarint(segment, position);
+                position += varintSize(keyLength);
+                if (keyLength != key.length) {
+                    continue;
+                }
+                boolean equal = true;
+                for (int i = 0; i < keyLength; ++i) {
+                    if (segment.get(position + i) != key[i]) {
+                        equal = false;
+                        break;
+                    }
+                }
+                if (!equal) {
+                    continue;
+                }
+                position += keyLength;
+
+                // Return a view of the value, decompressing it if necessary
+                final int valueLength = readVarint(segment, position);
+                position += varintSize(valueLength);
+                final ByteBuffer value = segment.duplicate();
+                value.limit(position + valueLength);
+                value.position(position);
+                if (!this.compressed) {
+                    return value;
+                }
+                final int length = Snappy.uncompressedLength(value);
+                if (this.buffer == null || this.buffer.capacity() < length) {
+                    this.buffer = ByteBuffer.allocateDirect(Math.max(length, 4096));
+                }
+                this.buffer.clear();
+                Snappy.uncompress(value, this.buffer);
+                return this.buffer;
+            }
+        }
+
+        @Override
+        public long slotOf(final byte[] key) {
+            return HashStore.hash(key) & this.mask;
+        }
+
+        @Override
+        public long size() {
+            return this.numEntries;
+        }
+
+        @Override
+        public void forEachKey(final Consumer<byte[]> consumer) {
+            Objects.requireNonNull(consumer);
+            for (long slot = 0; slot <= this.mask; ++slot) {
+                if (slotHash(this.slots, slot) == 0L) {
+                    continue;
+                }
+                final long offset = slotOffset(this.slots, slot);
+                final ByteBuffer segment = this.data[(int) (offset >>> HashStore.SEGMENT_BITS)];
+                int position = (int) (offset & (1 << HashStore.SEGMENT_BITS) - 1);
+                final int keyLength = readVarint(segment, position);
+                position += varintSize(keyLength);
+                final byte[] key = new byte[keyLength];
+                for (int i = 0; i < keyLength; ++i) {
+                    key[i] = segment.get(position + i);
+                }
+                consumer.accept(key);
+            }
+        }
+
+        @Override
+        public Reader duplicate() {
+            return new HashStoreReader(this);
+        }
+
+        @Override
+        public void close() {
+            // Mapped buffers are released on garbage collection
+        }
+
+        static long slotHash(final ByteBuffer[] slots, final long slot) {
+            return slots[(int) (slot >>> HashStore.SLOT_SEGMENT_BITS)].getLong(
+                    (int) (slot & (1 << HashStore.SLOT_SEGMENT_BITS) - 1) * 16);
+        }
+
+        static long slotOffset(final ByteBuffer[] slots, final long slot) {
+            return slots[(int) (slot >>> HashStore.SLOT_SEGMENT_BITS)].getLong(
+                    (int) (slot & (1 << HashStore.SLOT_SEGMENT_BITS) - 1) * 16 + 8);
+        }
+
+        private static int readVarint(final ByteBuffer buffer, final int position) {
+            int result = 0;
+            for (int shift = 0, index = position;; shift += 7) {
+                final int b = buffer.get(index++);
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+
+        private static int varintSize(final int value) {
+            int size = 1;
+            for (int remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+                ++size;
+            }
+            return size;
+        }
+
+    }
+
+}
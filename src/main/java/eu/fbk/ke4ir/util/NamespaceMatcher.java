@@ -0,0 +1,164 @@
+package eu.fbk.ke4ir.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+/**
+ * Matches URI strings against multiple sets of namespaces in a single pass.
+ *
+ * <p>
+ * The namespaces of all the sets are compiled in a character trie, whose nodes are labelled with
+ * a bitmask telling which sets contain the namespace ending at that node. Matching a string means
+ * walking the trie along its characters and OR-ing the masks of traversed nodes, so the cost is
+ * bounded by the length of the matched namespace and does not depend on the number of configured
+ * namespaces. Set {@code i} (in the order supplied to {@link #create(Iterable...)}) corresponds to
+ * bit {@code 1 << i} of returned masks; at most 32 sets are supported.
+ * </p>
+ */
+public final class NamespaceMatcher {
+
+    private final int[] childStart; // children of node n are at [childStart[n], childStart[n+1])
+
+    private final char[] childLabels;
+
+    private final int[] childTargets;
+
+    private final int[] masks;
+
+    private NamespaceMatcher(final int[] childStart, final char[] childLabels,
+            final int[] childTargets, final int[] masks) {
+        this.childStart = childStart;
+        this.childLabels = childLabels;
+        this.childTargets = childTargets;
+        this.masks = masks;
+    }
+
+    @SafeVarargs
+    public static NamespaceMatcher create(final Iterable<String>... namespaceSets) {
+
+        Preconditions.checkArgument(namespaceSets.length <= 32, "Too many namespace sets");
+
+        // Build a pointer-based trie, tracking for each node the sets of namespaces ending there
+        final List<Map<Character, Integer>> children = Lists.newArrayList();
+        final List<Integer> masks = Lists.newArrayList();
+        children.add(Maps.newTreeMap());
+        masks.add(0);
+        for (int i = 0; i < namespaceSets.length; ++i) {
+            if (namespaceSets[i] == null) {
+                continue;
+            }
+            for (final String namespace : namespaceSets[i]) {
+                int node = 0;
+                for (int j = 0; j < namespace.length(); ++j) {
+                    final Character c = namespace.charAt(j);
+                    Integer child = children.get(node).get(c);
+                    if (child == null) {
+                        child = children.size();
+                        children.add(Maps.newTreeMap());
+                        masks.add(0);
+                        children.get(node).put(c, child);
+                    }
+                    node = child;
+                }
+                masks.set(node, masks.get(node) | 1 << i);
+            }
+        }
+
+        // Flatten the trie in arrays, storing the (sorted) children of each node contiguously
+        final int numNodes = children.size();
+        final int[] childStart = new int[numNodes + 1];
+        final char[] childLabels = new char[numNodes - 1];
+        final int[] childTargets = new int[numNodes - 1];
+        final int[] maskArray = new int[numNodes];
+        int index = 0;
+        for (int node = 0; node < numNodes; ++node) {
+            childStart[node] = index;
+            for (final Map.Entry<Character, Integer> entry : children.get(node).entrySet()) {
+                childLabels[index] = entry.getKey();
+                childTargets[index] = entry.getValue();
+                ++index;
+            }
+            maskArray[node] = masks.get(node);
+        }
+        childStart[numNodes] = index;
+        return new NamespaceMatcher(childStart, childLabels, childTargets, maskArray);
+    }
+
+    /**
+     * Returns the mask of the sets containing a namespace that is a prefix of the supplied
+     * string.
+     *
+     * @param string
+     *            the string to match, not null
+     * @return a bitmask with bit {@code i} set if set {@code i} matches the string
+     */
+    public int match(final String string) {
+        int node = 0;
+        int result = this.masks[0];
+        final int length = string.length();
+        for (int i = 0; i < length; ++i) {
+            node = child(node, string.charAt(i));
+            if (node < 0) {
+                break;
+            }
+            result |= this.masks[node];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the mask of the sets containing a namespace that is a prefix of the supplied value,
+     * if it is a URI.
+     *
+     * @param value
+     *            the value to match, possibly null
+     * @return a bitmask with bit {@code i} set if set {@code i} matches the value; 0 for values
+     *         that are not URIs
+     */
+    public int match(final Value value) {
+        return value instanceof URI ? match(value.stringValue()) : 0;
+    }
+
+    /**
+     * Returns the mask of the sets containing exactly the supplied namespace.
+     *
+     * @param namespace
+     *            the namespace to look up, not null
+     * @return a bitmask with bit {@code i} set if set {@code i} contains the namespace
+     */
+    public int matchExact(final String namespace) {
+        Objects.requireNonNull(namespace);
+        int node = 0;
+        final int length = namespace.length();
+        for (int i = 0; i < length && node >= 0; ++i) {
+            node = child(node, namespace.charAt(i));
+        }
+        return node < 0 ? 0 : this.masks[node];
+    }
+
+    private int child(final int node, final char c) {
+        int low = this.childStart[node];
+        int high = this.childStart[node + 1] - 1;
+        while (low <= high) {
+            final int mid = low + high >>> 1;
+            final char label = this.childLabels[mid];
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return this.childTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+}
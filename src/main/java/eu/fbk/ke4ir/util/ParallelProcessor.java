@@ -0,0 +1,289 @@
+package eu.fbk.ke4ir.util;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.rdfpro.util.Environment;
+
+/**
+ * Processes a stream of items with a fixed number of worker threads fed through a bounded queue.
+ *
+ * <p>
+ * Items are pulled lazily from the source by the calling thread and handed to workers through a
+ * queue of limited capacity, so that the source is never consumed faster than items can be
+ * processed. Before starting an item, a worker checks heap usage: if it exceeds the configured
+ * threshold and other items are in progress, the worker waits for them to complete, so that
+ * memory-hungry items throttle intake instead of exhausting the heap. Progress (processed items,
+ * throughput and, once the total is known, ETA) is logged periodically.
+ * </p>
+ */
+public final class ParallelProcessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelProcessor.class);
+
+    private static final Object EOF = new Object();
+
+    private final String name;
+
+    private final int numWorkers;
+
+    private final int queueSize;
+
+    private final double maxHeapUsage;
+
+    private final long progressInterval;
+
+    private final Object lock;
+
+    private int numActive;
+
+    private ParallelProcessor(final Builder builder) {
+        this.name = builder.name;
+        this.numWorkers = builder.numWorkers > 0 ? builder.numWorkers : Environment.getCores();
+        this.queueSize = builder.queueSize > 0 ? builder.queueSize : 2 * this.numWorkers;
+        this.maxHeapUsage = builder.maxHeapUsage;
+        this.progressInterval = builder.progressInterval;
+        this.lock = new Object();
+        this.numActive = 0;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Processes all the items of the supplied source with the supplied consumer, returning when
+     * all of them have been processed. If the consumer fails on some item, no further items are
+     * started and the first failure is propagated to the caller.
+     *
+     * @param source
+     *            the items to process, iterated lazily and only once
+     * @param consumer
+     *            the consumer processing each item, invoked concurrently by multiple threads
+     * @return the number of processed items
+     */
+    @SuppressWarnings("unchecked")
+    public <T> long process(final Iterable<? extends T> source,
+            final Consumer<? super T> consumer) {
+
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(consumer);
+
+        final long ts = System.currentTimeMillis();
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(this.queueSize);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong numProcessed = new AtomicLong(0L);
+        final AtomicLong numTotal = new AtomicLong(-1L);
+        final AtomicLong lastLogTs = new AtomicLong(ts);
+
+        // The total is known upfront only for collections; otherwise it becomes known (enabling
+        // ETA reporting) once the source has been fully fed to the workers, so that the source is
+        // never iterated twice
+        if (source instanceof Collection<?>) {
+            numTotal.set(((Collection<?>) source).size());
+        }
+
+        // Start workers, each taking items from the queue until EOF is found
+        final List<Thread> workers = Lists.newArrayListWithCapacity(this.numWorkers);
+        for (int i = 0; i < this.numWorkers; ++i) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Object item = queue.take();
+                        if (item == EOF) {
+                            break;
+                        } else if (failure.get() != null) {
+                            continue; // drain the queue without processing
+                        }
+                        admit();
+                        try {
+                            consumer.accept((T) item);
+                        } catch (final Throwable ex) {
+                            failure.compareAndSet(null, ex);
+                        } finally {
+                            release();
+                        }
+                        logProgress(ts, lastLogTs, numProcessed.incrementAndGet(), numTotal.get());
+                    }
+                } catch (final InterruptedException ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            }, this.name + "-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        boolean interrupted = false;
+        try {
+            // Feed the workers, blocking when the queue is full. The source may fail too
+            long numSubmitted = 0;
+            for (final T item : source) {
+                if (failure.get() != null) {
+                    break;
+                }
+                queue.put(item);
+                ++numSubmitted;
+            }
+            if (failure.get() == null) {
+                numTotal.set(numSubmitted);
+            }
+
+        } catch (final InterruptedException ex) {
+            interrupted = true;
+            failure.compareAndSet(null, ex);
+
+        } catch (final Throwable ex) {
+            failure.compareAndSet(null, ex);
+
+        } finally {
+            // Always stop the workers, which would otherwise wait forever for further items,
+            // then wait for them to complete (or interrupt them, if interrupted)
+            try {
+                if (!interrupted) {
+                    for (int i = 0; i < this.numWorkers; ++i) {
+                        queue.put(EOF);
+                    }
+                    for (final Thread worker : workers) {
+                        worker.join();
+                    }
+                }
+            } catch (final InterruptedException ex) {
+                interrupted = true;
+                failure.compareAndSet(null, ex);
+            }
+            if (interrupted) {
+                for (final Thread worker : workers) {
+                    worker.interrupt();
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Propagate failure, if any
+        if (failure.get() != null) {
+            throw Throwables.propagate(failure.get());
+        }
+
+        final long elapsed = Math.max(1L, System.currentTimeMillis() - ts);
+        LOGGER.info("Processed {} {} in {} ms ({} {}/s)", numProcessed.get(), this.name,
+                elapsed, String.format("%.2f", numProcessed.get() * 1000.0 / elapsed),
+                this.name);
+        return numProcessed.get();
+    }
+
+    private void admit() throws InterruptedException {
+        synchronized (this.lock) {
+            boolean throttled = false;
+            while (this.numActive > 0 && heapUsage() > this.maxHeapUsage) {
+                if (!throttled) {
+                    LOGGER.debug("Heap usage above {}%, waiting for {} running tasks",
+                            (int) (this.maxHeapUsage * 100), this.numActive);
+                    throttled = true;
+                }
+                this.lock.wait(100); // re-check periodically, as GC may free memory meanwhile
+            }
+            ++this.numActive;
+        }
+    }
+
+    private void release() {
+        synchronized (this.lock) {
+            --this.numActive;
+            this.lock.notifyAll();
+        }
+    }
+
+    private void logProgress(final long startTs, final AtomicLong lastLogTs,
+            final long numProcessed, final long numTotal) {
+
+        final long ts = System.currentTimeMillis();
+        final long lastTs = lastLogTs.get();
+        if (ts - lastTs < this.progressInterval || !lastLogTs.compareAndSet(lastTs, ts)) {
+            return;
+        }
+
+        final double rate = numProcessed * 1000.0 / Math.max(1L, ts - startTs);
+        if (numTotal < 0) {
+            LOGGER.info("Processed {} {} ({} {}/s)", numProcessed, this.name,
+                    String.format("%.2f", rate), this.name);
+        } else {
+            final long eta = rate == 0.0 ? 0L : (long) ((numTotal - numProcessed) / rate);
+            LOGGER.info("Processed {}/{} {} ({}%, {} {}/s, ETA {})", numProcessed, numTotal,
+                    this.name, numProcessed * 100 / Math.max(1L, numTotal),
+                    String.format("%.2f", rate), this.name, String.format("%d:%02d:%02d",
+                            eta / 3600, eta / 60 % 60, eta % 60));
+        }
+    }
+
+    private static double heapUsage() {
+        final Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (double) runtime.maxMemory();
+    }
+
+    public static final class Builder {
+
+        private String name;
+
+        private int numWorkers;
+
+        private int queueSize;
+
+        private double maxHeapUsage;
+
+        private long progressInterval;
+
+        Builder() {
+            this.name = "items";
+            this.numWorkers = 0;
+            this.queueSize = 0;
+            this.maxHeapUsage = 1.0;
+            this.progressInterval = 10000L;
+        }
+
+        public Builder withName(final String name) {
+            this.name = Objects.requireNonNull(name);
+            return this;
+        }
+
+        public Builder withWorkers(final int numWorkers) {
+            this.numWorkers = numWorkers;
+            return this;
+        }
+
+        public Builder withQueueSize(final int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        public Builder withMaxHeapUsage(final double maxHeapUsage) {
+            Preconditions.checkArgument(maxHeapUsage > 0.0, "Invalid max heap usage %s",
+                    maxHeapUsage);
+            this.maxHeapUsage = maxHeapUsage;
+            return this;
+        }
+
+        public Builder withProgressInterval(final long progressInterval) {
+            this.progressInterval = progressInterval;
+            return this;
+        }
+
+        public ParallelProcessor build() {
+            return new ParallelProcessor(this);
+        }
+
+    }
+
+}
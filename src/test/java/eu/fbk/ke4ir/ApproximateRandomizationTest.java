@@ -0,0 +1,60 @@
+package eu.fbk.ke4ir;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.fbk.ke4ir.util.ApproximateRandomization;
+
+public class ApproximateRandomizationTest {
+
+    @Test
+    public void test() {
+
+        // Generate paired samples, the second one slightly better than the first one
+        final Random random = new Random(0);
+        final double[] a = new double[12];
+        final double[] b = new double[a.length];
+        for (int i = 0; i < a.length; ++i) {
+            a[i] = random.nextDouble();
+            b[i] = i % 4 == 0 ? a[i] : a[i] + random.nextGaussian() * 0.2 + 0.05;
+        }
+
+        // Compute the exact p-value of the sign-flip test, enumerating all the swaps of pairs
+        double observed = 0.0;
+        for (int i = 0; i < a.length; ++i) {
+            observed += b[i] - a[i];
+        }
+        int count = 0;
+        for (int mask = 0; mask < 1 << a.length; ++mask) {
+            double sum = 0.0;
+            for (int i = 0; i < a.length; ++i) {
+                sum += ((mask & 1 << i) != 0 ? -1 : 1) * (b[i] - a[i]);
+            }
+            count += Math.abs(sum) >= Math.abs(observed) - 1e-12 ? 1 : 0;
+        }
+        final double exact = (double) count / (1 << a.length);
+
+        // The approximate p-value must be close to the exact one and deterministic, also when
+        // stopping early
+        final double p = ApproximateRandomization.test(100000, a, b);
+        Assert.assertEquals(exact, p, 0.01);
+        Assert.assertEquals(p, ApproximateRandomization.test(100000, a, b), 0.0);
+        Assert.assertEquals(exact, ApproximateRandomization.test(100000, 2000, 1L, a, b), 0.01);
+
+        // Early stopping is checked after rounds of 8 chunks of 1024 iterations, whatever the
+        // number of cores, and uses the same estimator (count + 1) / (iterations + 1)
+        final double early = ApproximateRandomization.test(100000, 1, 1L, a, b) * (8 * 1024 + 1);
+        Assert.assertEquals(Math.rint(early), early, 1e-6);
+
+        // Identical samples are never significantly different, very different ones always are
+        Assert.assertEquals(1.0, ApproximateRandomization.test(1000, a, a), 0.0);
+        final double[] c = new double[a.length];
+        for (int i = 0; i < a.length; ++i) {
+            c[i] = a[i] + 1.0;
+        }
+        Assert.assertEquals(1.0 / 1001, ApproximateRandomization.test(1000, a, c), 1e-3);
+    }
+
+}
@@ -0,0 +1,109 @@
+package eu.fbk.ke4ir;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.OWL;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.rio.RDFHandler;
+
+import eu.fbk.ke4ir.util.KeyQuadIndex;
+import eu.fbk.rdfpro.util.QuadModel;
+import eu.fbk.rdfpro.util.StatementComponent;
+import eu.fbk.rdfpro.util.Statements;
+
+public class EnricherTest {
+
+    private static final ValueFactory VF = Statements.VALUE_FACTORY;
+
+    private static final String DBR = "http://dbpedia.org/resource/";
+
+    private static final String DBO = "http://dbpedia.org/ontology/";
+
+    private static final URI ROME = VF.createURI(DBR + "Rome");
+
+    private static final URI MILAN = VF.createURI(DBR + "Milan");
+
+    private static final URI TURIN = VF.createURI(DBR + "Turin");
+
+    private static final URI ITALY = VF.createURI(DBR + "Italy");
+
+    private static final URI PAUL = VF.createURI(DBR + "Paul");
+
+    private static final URI CITY = VF.createURI(DBO + "City");
+
+    private static final URI PLACE = VF.createURI(DBO + "Place");
+
+    private static final URI COUNTRY = VF.createURI(DBO + "country");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws Throwable {
+
+        final List<Statement> stmts = ImmutableList.of(
+                VF.createStatement(ROME, COUNTRY, ITALY),
+                VF.createStatement(MILAN, COUNTRY, ITALY),
+                VF.createStatement(TURIN, COUNTRY, ITALY),
+                VF.createStatement(MILAN, RDF.TYPE, CITY),
+                VF.createStatement(PAUL, VF.createURI(DBO + "birthPlace"), ROME),
+                VF.createStatement(VF.createURI(DBO + "nation"), OWL.EQUIVALENTPROPERTY, COUNTRY),
+                VF.createStatement(CITY, RDFS.SUBCLASSOF, PLACE));
+
+        final File index = new File(this.folder.getRoot(), "index");
+        final File inverseIndex = new File(this.folder.getRoot(), "inverse");
+        for (final RDFHandler indexer : new RDFHandler[] {
+                KeyQuadIndex.indexer(index, StatementComponent.SUBJECT),
+                KeyQuadIndex.indexer(inverseIndex, StatementComponent.OBJECT) }) {
+            indexer.startRDF();
+            for (final Statement stmt : stmts) {
+                indexer.handleStatement(stmt);
+            }
+            indexer.endRDF();
+        }
+
+        // Incoming edges are added for entities only, not for predicates and classes
+        final Enricher enricher = Enricher.createURIEnricher(index.toPath(),
+                inverseIndex.toPath(), 0, ImmutableSet.of(DBR, DBO), ImmutableSet.of(), 0);
+        final QuadModel model = QuadModel.create();
+        model.add(VF.createStatement(ROME, COUNTRY, ITALY));
+        model.add(VF.createStatement(ROME, RDF.TYPE, CITY));
+        enricher.enrich(model);
+        Assert.assertEquals(toStrings(ImmutableList.<Statement>builder()
+                .addAll(stmts.subList(0, 3)).add(stmts.get(4)).add(stmts.get(6))
+                .add(VF.createStatement(ROME, RDF.TYPE, CITY)).build()), toStrings(model));
+
+        // At most the configured number of incoming edges is added for each URI
+        final Enricher cappedEnricher = Enricher.createURIEnricher(index.toPath(),
+                inverseIndex.toPath(), 2, ImmutableSet.of(DBR), ImmutableSet.of(), 0);
+        final QuadModel cappedModel = QuadModel.create();
+        cappedModel.add(VF.createStatement(ITALY, RDF.TYPE, VF.createURI(DBO + "Country")));
+        cappedEnricher.enrich(cappedModel);
+        Assert.assertEquals(3, cappedModel.size());
+        Assert.assertTrue(toStrings(stmts.subList(0, 3)).containsAll(toStrings(cappedModel
+                .filter(null, COUNTRY, ITALY))));
+    }
+
+    private static Set<String> toStrings(final Iterable<Statement> stmts) {
+        final Set<String> set = Sets.newHashSet();
+        for (final Statement stmt : stmts) {
+            set.add(stmt + " " + stmt.getContext());
+        }
+        return set;
+    }
+
+}
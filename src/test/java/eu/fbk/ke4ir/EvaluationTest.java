@@ -0,0 +1,152 @@
+package eu.fbk.ke4ir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.fbk.ke4ir.util.RankingScore.Measure;
+
+public class EvaluationTest {
+
+    private static final List<String> LAYERS = ImmutableList.of("textual", "uri", "type");
+
+    private static final Map<String, Float> WEIGHTS = ImmutableMap.of("textual", 0.5f, "uri",
+            0.3f, "type", 0.2f);
+
+    private static final Map<String, Float> OTHER_WEIGHTS = ImmutableMap.of("textual", 0.2f,
+            "uri", 0.2f, "type", 0.6f);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws Throwable {
+
+        // Generate random documents, queries and relevance judgments
+        final Random random = new Random(0);
+        final Map<String, TermVector> docs = Maps.newLinkedHashMap();
+        for (int i = 0; i < 200; ++i) {
+            docs.put(String.format("d%03d", i), randomVector(random, 20));
+        }
+        final Map<String, TermVector> queries = Maps.newHashMap();
+        final Map<String, Map<String, Double>> rels = Maps.newHashMap();
+        for (int i = 0; i < 20; ++i) {
+            final String queryID = "q" + i;
+            queries.put(queryID, randomVector(random, 3 + i % 5));
+            final Map<String, Double> queryRels = Maps.newHashMap();
+            for (int j = 0; j < 10; ++j) {
+                queryRels.put(String.format("d%03d", random.nextInt(docs.size())),
+                        1.0 + random.nextInt(2));
+            }
+            rels.put(queryID, queryRels);
+        }
+
+        // Index documents with their IDs, each term repeated as many times as its frequency
+        final RAMDirectory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                new WhitespaceAnalyzer()))) {
+            for (final Map.Entry<String, TermVector> entry : docs.entrySet()) {
+                final Document doc = new Document();
+                doc.add(new StringField("id", entry.getKey(), Store.YES));
+                doc.add(new SortedDocValuesField("id", new BytesRef(entry.getKey())));
+                for (final Term term : entry.getValue().getTerms()) {
+                    for (int j = 0; j < term.getFrequency(); ++j) {
+                        doc.add(new TextField(term.getField(), term.getValue(), Store.NO));
+                    }
+                }
+                writer.addDocument(doc);
+            }
+        }
+
+        final Ranker ranker = Ranker.createTfIdfRanker(WEIGHTS, ImmutableList.of("uri", "type"));
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(ranker.getSimilarity());
+
+            // Sweep rows for the ranker weights must report the same scores of a plain run
+            final Evaluation evaluation = new Evaluation(searcher, ranker, LAYERS,
+                    ImmutableList.of("textual"), Measure.NDCG, "ttest", 0, 0, 1024, "rerank", 0,
+                    docs);
+            final Path runPath = this.folder.newFolder("run").toPath();
+            final Path sweepPath = this.folder.newFolder("sweep").toPath();
+            evaluation.run(queries, rels, runPath);
+            evaluation.sweep(queries, rels, ImmutableList.of(OTHER_WEIGHTS, WEIGHTS), sweepPath);
+            final String weights = Joiner.on(' ').withKeyValueSeparator(":").join(WEIGHTS);
+            final Map<String, String> expected = Maps.newHashMap();
+            for (final String line : Files.readAllLines(runPath.resolve("aggregates.csv"))
+                    .subList(1, 8)) {
+                final String[] fields = line.split(";");
+                final StringBuilder builder = new StringBuilder();
+                for (int i = 1; i < fields.length; i += 2) {
+                    builder.append(";").append(fields[i]);
+                }
+                expected.put(fields[0], builder.toString());
+            }
+            final Map<String, String> actual = Maps.newHashMap();
+            final List<String> lines = Files.readAllLines(sweepPath.resolve("sweep.csv"));
+            Assert.assertEquals(1 + 2 * 7, lines.size());
+            for (final String line : lines.subList(1, lines.size())) {
+                final String[] fields = line.split(";", 3);
+                if (fields[0].equals(weights)) {
+                    actual.put(fields[1], ";" + fields[2]);
+                }
+            }
+            Assert.assertEquals(expected, actual);
+
+            // Sweeping with a ranker not supporting layer weights must fail upfront
+            final Ranker fixedRanker = new Ranker() {
+
+                @Override
+                public float[] rank(final TermVector queryVector, final TermVector[] docVectors,
+                        final Statistics statistics) {
+                    return ranker.rank(queryVector, docVectors, statistics);
+                }
+
+            };
+            try {
+                new Evaluation(searcher, fixedRanker, LAYERS, ImmutableList.of("textual"),
+                        Measure.NDCG, "ttest", 0, 0, 1024, "rerank", 0, docs).sweep(queries,
+                        rels, ImmutableList.of(WEIGHTS), sweepPath);
+                Assert.fail();
+            } catch (final IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    private static TermVector randomVector(final Random random, final int size) {
+        final TermVector.Builder builder = TermVector.builder();
+        for (int i = 0; i < size; ++i) {
+            final String layer = LAYERS.get(random.nextInt(LAYERS.size()));
+            builder.addTerm(layer, layer + random.nextInt(30), 1 + random.nextInt(3),
+                    0.5 + random.nextInt(3) * 0.25);
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,50 @@
+package eu.fbk.ke4ir;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KE4IRTest {
+
+    private static final List<String> LAYERS = ImmutableList.of("textual", "uri", "type");
+
+    @Test
+    public void test() throws Throwable {
+
+        // The grid must contain all the C(10 + 2, 2) distinct weight vectors summing to 1 whose
+        // weights are multiples of the step
+        final List<Map<String, Float>> grid = KE4IR.generateLayerWeights(LAYERS, 0.1, 0, 0L);
+        Assert.assertEquals(66, grid.size());
+        Assert.assertEquals(66, Sets.newHashSet(grid).size());
+        for (final Map<String, Float> weights : grid) {
+            Assert.assertEquals(LAYERS, ImmutableList.copyOf(weights.keySet()));
+            double sum = 0.0;
+            for (final float weight : weights.values()) {
+                Assert.assertEquals(0.0, weight * 10 - Math.round(weight * 10), 1e-5);
+                sum += weight;
+            }
+            Assert.assertEquals(1.0, sum, 1e-5);
+        }
+
+        // Sampling must return the requested number of weight vectors summing to 1, the same
+        // ones for the same seed
+        final List<Map<String, Float>> samples = KE4IR.generateLayerWeights(LAYERS, 0.1, 20, 1L);
+        Assert.assertEquals(20, samples.size());
+        Assert.assertEquals(samples, KE4IR.generateLayerWeights(LAYERS, 0.1, 20, 1L));
+        for (final Map<String, Float> weights : samples) {
+            Assert.assertEquals(LAYERS, ImmutableList.copyOf(weights.keySet()));
+            double sum = 0.0;
+            for (final float weight : weights.values()) {
+                Assert.assertTrue(weight >= 0.0f);
+                sum += weight;
+            }
+            Assert.assertEquals(1.0, sum, 1e-5);
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package eu.fbk.ke4ir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.rio.RDFHandler;
+
+import eu.fbk.ke4ir.util.KeyQuadIndex;
+import eu.fbk.ke4ir.util.KeyQuadStore;
+import eu.fbk.rdfpro.util.StatementComponent;
+import eu.fbk.rdfpro.util.Statements;
+
+// Not a unit test: run manually to compare KeyQuadIndex encodings and storage backends (build
+// time, size, lookup throughput and latency) and lookup throughput w.r.t. thread count.
+// Entities are spread over the given number of namespaces, so that with more than 256 of them
+// v1 falls back to full-string URI encoding.
+// Usage: KeyQuadIndexBenchmark [num entities] [seconds per run] [num namespaces]
+
+public class KeyQuadIndexBenchmark {
+
+    private static final String NS_RESOURCE = "http://dbpedia.org/resource/";
+
+    private static final String NS_ONTOLOGY = "http://dbpedia.org/ontology/";
+
+    public static void main(final String... args) throws Throwable {
+
+        final int numEntities = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int numNamespaces = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        final File dir = Files.createTempDirectory("ke4ir-bench").toFile();
+        try {
+            final KeyQuadStore sparkey = KeyQuadStore.createSparkeyStore();
+            final Object[][] configurations = new Object[][] { { 1, sparkey }, { 2, sparkey },
+                    { 2, KeyQuadStore.createHashStore(false) },
+                    { 2, KeyQuadStore.createHashStore(true) } };
+            for (final Object[] configuration : configurations) {
+                final int version = (Integer) configuration[0];
+                final KeyQuadStore store = (KeyQuadStore) configuration[1];
+                final String name = "v" + version + "/" + store;
+                final File file = new File(dir, "index-v" + version + "-" + store);
+                long ts = System.currentTimeMillis();
+                build(file, numEntities, numNamespaces, version, store);
+                long size = 0L;
+                for (final File f : dir.listFiles()) {
+                    size += f.getName().startsWith(file.getName() + ".") ? f.length() : 0L;
+                }
+                System.out.printf("%s: built index with %d entities in %d ms, %d bytes%n",
+                        name, numEntities, System.currentTimeMillis() - ts, size);
+
+                try (KeyQuadIndex index = new KeyQuadIndex(file)) {
+                    final int maxThreads = Runtime.getRuntime().availableProcessors();
+                    for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+                        ts = System.currentTimeMillis();
+                        final long lookups = lookup(index, numEntities, numNamespaces,
+                                numThreads, seconds);
+                        final long elapsed = System.currentTimeMillis() - ts;
+                        System.out.printf("%s: %2d threads: %10.0f lookups/s, %.2f us/lookup%n",
+                                name, numThreads, lookups * 1000.0 / elapsed, elapsed * 1000.0
+                                        * numThreads / lookups);
+                    }
+                }
+            }
+
+        } finally {
+            for (final File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void build(final File file, final int numEntities, final int numNamespaces,
+            final int version, final KeyQuadStore store) throws Throwable {
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final RDFHandler indexer = KeyQuadIndex.indexer(file, StatementComponent.SUBJECT, 1,
+                version, store);
+        final Random random = new Random(0);
+        indexer.startRDF();
+        for (int i = 0; i < numEntities; ++i) {
+            final URI entity = entity(i, numNamespaces);
+            for (int j = 0; j < 5; ++j) {
+                final URI type = vf.createURI(NS_ONTOLOGY, "Class" + random.nextInt(500));
+                indexer.handleStatement(vf.createStatement(entity, RDF.TYPE, type));
+            }
+            indexer.handleStatement(vf.createStatement(entity, RDFS.LABEL,
+                    vf.createLiteral("Entity number " + i, "en")));
+        }
+        indexer.endRDF();
+    }
+
+    private static long lookup(final KeyQuadIndex index, final int numEntities,
+            final int numNamespaces, final int numThreads, final int seconds) throws Throwable {
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final AtomicLong counter = new AtomicLong();
+        final List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < numThreads; ++t) {
+            final Random random = new Random(t);
+            final Thread thread = new Thread(() -> {
+                long count = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    for (int i = 0; i < 1000; ++i) {
+                        // one lookup out of four is a miss
+                        final int id = random.nextInt(numEntities * 4 / 3);
+                        index.get(entity(id, numNamespaces), Lists.newArrayList());
+                    }
+                    count += 1000;
+                }
+                counter.addAndGet(count);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return counter.get();
+    }
+
+    private static URI entity(final int id, final int numNamespaces) {
+        return Statements.VALUE_FACTORY.createURI(NS_RESOURCE + "ns" + id % numNamespaces + "/",
+                "Entity" + id);
+    }
+
+}
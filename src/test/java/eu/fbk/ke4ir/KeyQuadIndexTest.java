@@ -0,0 +1,228 @@
+package eu.fbk.ke4ir;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandler;
+
+import eu.fbk.ke4ir.util.KeyQuadIndex;
+import eu.fbk.ke4ir.util.KeyQuadStore;
+import eu.fbk.rdfpro.util.StatementComponent;
+import eu.fbk.rdfpro.util.Statements;
+
+public class KeyQuadIndexTest {
+
+    private static final ValueFactory VF = Statements.VALUE_FACTORY;
+
+    private static final URI ROME = VF.createURI("http://dbpedia.org/resource/Rome");
+
+    private static final URI ITALY = VF.createURI("http://dbpedia.org/resource/Italy");
+
+    private static final URI CITY = VF.createURI("http://dbpedia.org/ontology/City");
+
+    private static final URI PLACE = VF.createURI("http://dbpedia.org/ontology/Place");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test() throws Throwable {
+
+        final URI ctx = VF.createURI("http://example.org/graph");
+        final List<Statement> stmts = ImmutableList.of(
+                VF.createStatement(ROME, RDF.TYPE, CITY),
+                VF.createStatement(ROME, RDFS.LABEL, VF.createLiteral("Roma", "it")),
+                VF.createStatement(ROME, VF.createURI("http://example.org/population"),
+                        VF.createLiteral("2873000", XMLSchema.INTEGER)),
+                VF.createStatement(ROME, VF.createURI("http://example.org/motto"),
+                        VF.createLiteral("S.P.Q.R.")),
+                VF.createStatement(ROME, VF.createURI("http://example.org/code"),
+                        VF.createLiteral("RM", VF.createURI("http://example.org/dt#code"))),
+                VF.createStatement(ROME, VF.createURI("http://example.org/country"), ITALY, ctx),
+                VF.createStatement(ROME, VF.createURI("http://example.org/near"),
+                        VF.createBNode("b1"), ctx),
+                VF.createStatement(CITY, RDFS.SUBCLASSOF, PLACE));
+
+        final File file = new File(this.folder.getRoot(), "index");
+        final RDFHandler indexer = KeyQuadIndex.indexer(file, StatementComponent.SUBJECT);
+        indexer.startRDF();
+        for (final Statement stmt : stmts) {
+            indexer.handleStatement(stmt);
+        }
+        indexer.endRDF();
+
+        try (KeyQuadIndex index = new KeyQuadIndex(file)) {
+            Assert.assertEquals(KeyQuadIndex.VERSION, index.getVersion());
+            final List<Statement> rome = Lists.newArrayList();
+            Assert.assertTrue(index.get(ROME, rome));
+            Assert.assertEquals(toStrings(stmts.subList(0, 7)), toStrings(rome));
+            Assert.assertFalse(index.get(ITALY, Lists.newArrayList()));
+
+            final List<Statement> batch = Lists.newArrayList();
+            Assert.assertEquals(2, index.getAll(ImmutableList.of(CITY, ITALY, ROME, CITY), batch));
+            Assert.assertEquals(toStrings(stmts), toStrings(batch));
+
+            final List<Statement> closure = Lists.newArrayList();
+            Assert.assertEquals(2, index.getRecursive(ImmutableList.of(ROME),
+                    v -> v.equals(CITY), closure));
+            Assert.assertEquals(toStrings(stmts), toStrings(closure));
+
+            Assert.assertTrue(new File(this.folder.getRoot(), "index.bloom").exists());
+            for (int i = 0; i < 100; ++i) {
+                index.get(VF.createURI("http://example.org/missing" + i), Lists.newArrayList());
+            }
+            Assert.assertEquals(index.getNumLookups(), index.getNumHits() + index.getNumMisses());
+            Assert.assertEquals(index.getNumMisses(), index.getNumFiltered()
+                    + index.getNumFalsePositives());
+            Assert.assertTrue(index.getNumFiltered() > 90);
+        }
+
+        try (KeyQuadIndex index = new KeyQuadIndex(file, KeyQuadIndex.ValueCache.create(16))) {
+            final List<Statement> first = Lists.newArrayList();
+            final List<Statement> second = Lists.newArrayList();
+            index.get(ROME, first);
+            index.get(ROME, second);
+            Assert.assertEquals(toStrings(stmts.subList(0, 7)), toStrings(second));
+            Assert.assertSame(first.get(0).getSubject(), second.get(0).getSubject());
+        }
+
+        final File v1File = new File(this.folder.getRoot(), "v1");
+        final RDFHandler v1Indexer = KeyQuadIndex.indexer(v1File, StatementComponent.SUBJECT, 1,
+                1);
+        v1Indexer.startRDF();
+        for (final Statement stmt : stmts) {
+            v1Indexer.handleStatement(stmt);
+        }
+        v1Indexer.endRDF();
+
+        try (KeyQuadIndex index = new KeyQuadIndex(v1File)) {
+            Assert.assertEquals(1, index.getVersion());
+            final List<Statement> rome = Lists.newArrayList();
+            Assert.assertTrue(index.get(ROME, rome));
+            Assert.assertEquals(toStrings(stmts.subList(0, 7)), toStrings(rome));
+        }
+
+        // Names longer than 0xFFF bytes can be encoded only in v2
+        final URI longURI = VF.createURI("http://example.org/" + Strings.repeat("x", 5000));
+        final List<Statement> shardedStmts = ImmutableList.<Statement>builder().addAll(stmts)
+                .add(VF.createStatement(longURI, RDFS.LABEL, VF.createLiteral("long")))
+                .build();
+
+        final File shardedFile = new File(this.folder.getRoot(), "sharded.idx");
+        final RDFHandler shardedIndexer = KeyQuadIndex.indexer(shardedFile,
+                StatementComponent.SUBJECT, 3);
+        shardedIndexer.startRDF();
+        for (final Statement stmt : shardedStmts) {
+            shardedIndexer.handleStatement(stmt);
+        }
+        shardedIndexer.endRDF();
+
+        try (KeyQuadIndex index = new KeyQuadIndex(shardedFile)) {
+            Assert.assertEquals(3, index.getNumShards());
+            final List<Statement> closure = Lists.newArrayList();
+            Assert.assertEquals(2, index.getRecursive(ImmutableList.of(ROME),
+                    v -> v.equals(CITY), closure));
+            Assert.assertEquals(toStrings(stmts), toStrings(closure));
+            Assert.assertFalse(index.get(ITALY, Lists.newArrayList()));
+            final List<Statement> longStmts = Lists.newArrayList();
+            Assert.assertTrue(index.get(longURI, longStmts));
+            Assert.assertEquals(longURI, longStmts.get(0).getSubject());
+        }
+
+        // Tiny memory budget to force many runs; duplicate quads must be dropped
+        final File sortedFile = new File(this.folder.getRoot(), "sorted");
+        final RDFHandler sortingIndexer = KeyQuadIndex.builder(sortedFile).withShards(2)
+                .withMemoryBudget(256).build();
+        sortingIndexer.startRDF();
+        for (final Statement stmt : Iterables.concat(shardedStmts, stmts)) {
+            sortingIndexer.handleStatement(stmt);
+        }
+        sortingIndexer.endRDF();
+
+        try (KeyQuadIndex index = new KeyQuadIndex(sortedFile)) {
+            Assert.assertEquals(2, index.getNumShards());
+            final List<Statement> rome = Lists.newArrayList();
+            Assert.assertTrue(index.get(ROME, rome));
+            Assert.assertEquals(7, rome.size());
+            Assert.assertEquals(toStrings(stmts.subList(0, 7)), toStrings(rome));
+            final List<Statement> closure = Lists.newArrayList();
+            Assert.assertEquals(2, index.getRecursive(ImmutableList.of(ROME),
+                    v -> v.equals(CITY), closure));
+            Assert.assertEquals(toStrings(stmts), toStrings(closure));
+            Assert.assertTrue(index.get(longURI, Lists.newArrayList()));
+        }
+        Assert.assertEquals(0, this.folder.getRoot().listFiles((dir, name) -> name
+                .startsWith("kq-runs-")).length);
+
+        // A run per quad, many more than merged at once, must require intermediate merges
+        final File manyRunsFile = new File(this.folder.getRoot(), "many-runs");
+        final RDFHandler manyRunsIndexer = KeyQuadIndex.builder(manyRunsFile)
+                .withMemoryBudget(1).build();
+        manyRunsIndexer.startRDF();
+        for (int i = 0; i < 1000; ++i) {
+            manyRunsIndexer.handleStatement(VF.createStatement(VF.createURI(
+                    "http://example.org/s" + i % 10), RDFS.LABEL, VF.createLiteral("l" + i
+                    % 300)));
+        }
+        manyRunsIndexer.endRDF();
+
+        try (KeyQuadIndex index = new KeyQuadIndex(manyRunsFile)) {
+            for (int i = 0; i < 10; ++i) {
+                final List<Statement> labels = Lists.newArrayList();
+                Assert.assertTrue(index.get(VF.createURI("http://example.org/s" + i), labels));
+                Assert.assertEquals(30, labels.size());
+            }
+        }
+
+        for (final boolean compressed : new boolean[] { false, true }) {
+            final KeyQuadStore store = KeyQuadStore.createHashStore(compressed);
+            final File hashFile = new File(this.folder.getRoot(), store.getName());
+            final RDFHandler hashIndexer = KeyQuadIndex.indexer(hashFile,
+                    StatementComponent.SUBJECT, 2, KeyQuadIndex.VERSION, store);
+            hashIndexer.startRDF();
+            for (final Statement stmt : shardedStmts) {
+                hashIndexer.handleStatement(stmt);
+            }
+            hashIndexer.endRDF();
+
+            try (KeyQuadIndex index = new KeyQuadIndex(hashFile)) {
+                Assert.assertSame(store, index.getStore());
+                Assert.assertEquals(2, index.getNumShards());
+                final List<Statement> closure = Lists.newArrayList();
+                Assert.assertEquals(2, index.getRecursive(ImmutableList.of(ROME),
+                        v -> v.equals(CITY), closure));
+                Assert.assertEquals(toStrings(stmts), toStrings(closure));
+                Assert.assertFalse(index.get(ITALY, Lists.newArrayList()));
+                final List<Statement> longStmts = Lists.newArrayList();
+                Assert.assertTrue(index.get(longURI, longStmts));
+                Assert.assertEquals(longURI, longStmts.get(0).getSubject());
+            }
+        }
+    }
+
+    private static Set<String> toStrings(final Iterable<Statement> stmts) {
+        final Set<String> set = Sets.newHashSet();
+        for (final Statement stmt : stmts) {
+            set.add(stmt + " " + stmt.getContext());
+        }
+        return set;
+    }
+
+}
@@ -0,0 +1,28 @@
+package eu.fbk.ke4ir;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.fbk.ke4ir.util.NamespaceMatcher;
+
+public class NamespaceMatcherTest {
+
+    @Test
+    public void test() {
+        final NamespaceMatcher matcher = NamespaceMatcher.create(
+                ImmutableList.of("http://dbpedia.org/resource/", "http://yago-knowledge.org/"),
+                ImmutableList.of("http://dbpedia.org/", "http://www.w3.org/2002/07/owl#"));
+        Assert.assertEquals(0x03, matcher.match("http://dbpedia.org/resource/Rome"));
+        Assert.assertEquals(0x02, matcher.match("http://dbpedia.org/ontology/City"));
+        Assert.assertEquals(0x01, matcher.match("http://yago-knowledge.org/resource/Rome"));
+        Assert.assertEquals(0x00, matcher.match("http://example.org/Rome"));
+        Assert.assertEquals(0x00, matcher.match("http://dbpedia.org"));
+        Assert.assertEquals(0x02, matcher.matchExact("http://dbpedia.org/"));
+        Assert.assertEquals(0x00, matcher.matchExact("http://dbpedia.org/ontology/"));
+        Assert.assertEquals(0x03, NamespaceMatcher.create(ImmutableList.of(""),
+                ImmutableList.of("")).match("urn:x"));
+    }
+
+}
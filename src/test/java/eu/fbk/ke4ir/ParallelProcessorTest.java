@@ -0,0 +1,61 @@
+package eu.fbk.ke4ir;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.fbk.ke4ir.util.ParallelProcessor;
+
+public class ParallelProcessorTest {
+
+    @Test(timeout = 10000)
+    public void test() throws Throwable {
+
+        // All the items must be processed
+        final AtomicLong sum = new AtomicLong();
+        final ParallelProcessor processor = ParallelProcessor.builder().withWorkers(3)
+                .withQueueSize(2).build();
+        Assert.assertEquals(4, processor.process(ImmutableList.of(1, 2, 3, 4),
+                (final Integer item) -> sum.addAndGet(item)));
+        Assert.assertEquals(10, sum.get());
+
+        // A source failing midway must make process() fail, after stopping all its workers
+        final Iterable<Integer> failingSource = () -> new AbstractIterator<Integer>() {
+
+            private int next = 0;
+
+            @Override
+            protected Integer computeNext() {
+                if (this.next == 50) {
+                    throw new IllegalStateException("source failure");
+                }
+                return this.next++;
+            }
+
+        };
+        try {
+            processor.process(failingSource, (final Integer item) -> sum.addAndGet(item));
+            Assert.fail();
+        } catch (final IllegalStateException ex) {
+            Assert.assertEquals("source failure", ex.getMessage());
+        }
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertFalse(thread.getName().startsWith("items-worker-") && thread.isAlive());
+        }
+
+        // A failing consumer must make process() fail as well
+        try {
+            processor.process(ImmutableList.of(1, 2, 3), (final Integer item) -> {
+                throw new IllegalArgumentException("consumer failure");
+            });
+            Assert.fail();
+        } catch (final IllegalArgumentException ex) {
+            Assert.assertEquals("consumer failure", ex.getMessage());
+        }
+    }
+
+}
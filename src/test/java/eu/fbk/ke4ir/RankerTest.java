@@ -0,0 +1,194 @@
+package eu.fbk.ke4ir;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RankerTest {
+
+    private static final List<String> LAYERS = ImmutableList.of("textual", "uri", "type");
+
+    private static final Map<String, Float> WEIGHTS = ImmutableMap.of("textual", 0.5f, "uri",
+            0.3f, "type", 0.2f);
+
+    private static final List<String> RESCALED_LAYERS = ImmutableList.of("uri", "type");
+
+    @Test
+    public void test() throws Throwable {
+
+        // Generate random documents and queries
+        final Random random = new Random(0);
+        final TermVector[] docs = new TermVector[200];
+        for (int i = 0; i < docs.length; ++i) {
+            docs[i] = randomVector(random, 20);
+        }
+        final List<TermVector> queries = Lists.newArrayList();
+        for (int i = 0; i < 20; ++i) {
+            queries.add(randomVector(random, 1 + i % 5).project(LAYERS.subList(0, 1 + i % 3)));
+        }
+
+        // Index documents, each term repeated as many times as its frequency
+        final RAMDirectory dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                new WhitespaceAnalyzer()))) {
+            for (final TermVector vector : docs) {
+                final Document doc = new Document();
+                for (final Term term : vector.getTerms()) {
+                    for (int j = 0; j < term.getFrequency(); ++j) {
+                        doc.add(new TextField(term.getField(), term.getValue(), Store.NO));
+                    }
+                }
+                writer.addDocument(doc);
+            }
+        }
+
+        final Ranker ranker = Ranker.createTfIdfRanker(WEIGHTS, RESCALED_LAYERS);
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(ranker.getSimilarity());
+            final Ranker.Statistics stats = statistics(searcher, queries);
+
+            for (final TermVector query : queries) {
+
+                // Scores computed by the ranker must be exactly the ones of the original formula
+                final float[] expected = ranker.rank(query, docs, stats);
+                Assert.assertArrayEquals(baselineRank(query, docs, stats), expected, 0.0f);
+
+                // Scores computed by Lucene must be the same of the ones computed by the ranker,
+                // up to rounding errors
+                final float[] actual = new float[docs.length];
+                for (final ScoreDoc hit : searcher.search(ranker.createQuery(query, stats, 1024),
+                        docs.length).scoreDocs) {
+                    actual[hit.doc] = hit.score;
+                }
+                for (int i = 0; i < docs.length; ++i) {
+                    Assert.assertEquals(expected[i], actual[i], expected[i] * 1e-5f);
+                }
+
+                // Top-k retrieval must return the best k documents of exhaustive scoring in
+                // Lucene, with ties broken by increasing document ID
+                final Integer[] sorted = new Integer[docs.length];
+                for (int i = 0; i < sorted.length; ++i) {
+                    sorted[i] = i;
+                }
+                Arrays.sort(sorted, (i, j) -> actual[i] != actual[j] ? Float.compare(actual[j],
+                        actual[i]) : Integer.compare(i, j));
+                final MaxScoreSearcher.Hits hits = new MaxScoreSearcher(searcher).search(
+                        ranker.createQuery(query, stats, 2), 5, doc -> String.format("%05d", doc));
+                for (int i = 0; i < hits.docs.length; ++i) {
+                    Assert.assertEquals(sorted[i].intValue(), hits.docs[i]);
+                    Assert.assertEquals(actual[sorted[i]], hits.scores[i], 0.0f);
+                }
+                Assert.assertEquals(Math.min(5, (int) Arrays.stream(sorted)
+                        .filter(i -> actual[i] > 0.0f).count()), hits.docs.length);
+
+                // Combining partial scores must give exactly the scores of each query projection
+                final Ranker.LayerScores layerScores = ranker.rankLayers(query, docs, stats);
+                for (int mask = 1; mask < 1 << LAYERS.size(); ++mask) {
+                    final List<String> layers = Lists.newArrayList();
+                    for (int i = 0; i < LAYERS.size(); ++i) {
+                        if ((mask & 1 << i) != 0) {
+                            layers.add(LAYERS.get(i));
+                        }
+                    }
+                    final TermVector projection = query.project(layers);
+                    Assert.assertArrayEquals(ranker.rank(projection, docs, stats),
+                            ranker.combine(layerScores, projection), 0.0f);
+                }
+            }
+        }
+    }
+
+    private static float[] baselineRank(final TermVector queryVector,
+            final TermVector[] docVectors, final Ranker.Statistics stats) {
+
+        // Original TF/IDF ranking code, with weights rescaled over layers in the query
+        Map<String, Float> weights = WEIGHTS;
+        float sumBefore = 0.0f;
+        float sumAfter = 0.0f;
+        for (final String layer : RESCALED_LAYERS) {
+            final float weight = weights.getOrDefault(layer, 0.0f);
+            sumBefore += queryVector.getLayers().contains(layer) ? weight : 0.0f;
+            sumAfter += weight;
+        }
+        if (sumBefore > 0.0f && sumBefore != sumAfter) {
+            final float multiplier = sumAfter / sumBefore;
+            weights = Maps.newHashMap(weights);
+            for (final String layer : RESCALED_LAYERS) {
+                weights.put(layer, weights.getOrDefault(layer, 0.0f) * multiplier);
+            }
+        }
+        final long numDocs = stats.getNumDocuments();
+        final float[] scores = new float[docVectors.length];
+        for (final Term queryTerm : queryVector.getTerms()) {
+            final String layer = queryTerm.getField();
+            final float weight = weights.getOrDefault(layer, 0.0f);
+            final long docFreq = stats.getNumDocuments(queryTerm);
+            for (int i = 0; i < docVectors.length; ++i) {
+                final Term docTerm = docVectors[i].getTerm(layer, queryTerm.getValue());
+                if (docTerm == null) {
+                    continue;
+                }
+                final double rfd = docTerm.getFrequency();
+                final double nfq = queryTerm.getWeight();
+                final float tfd = (float) (1.0 + Math.log(rfd));
+                final float tfq = (float) nfq;
+                final float idf = (float) Math.log(numDocs / (double) docFreq);
+                scores[i] += tfd * idf * idf * tfq * weight;
+            }
+        }
+        return scores;
+    }
+
+    private static TermVector randomVector(final Random random, final int size) {
+        final TermVector.Builder builder = TermVector.builder();
+        for (int i = 0; i < size; ++i) {
+            final String layer = LAYERS.get(random.nextInt(LAYERS.size()));
+            builder.addTerm(layer, layer + random.nextInt(30), 1 + random.nextInt(3),
+                    0.5 + random.nextInt(3) * 0.25);
+        }
+        return builder.build();
+    }
+
+    private static Ranker.Statistics statistics(final IndexSearcher searcher,
+            final Iterable<TermVector> queries) throws Throwable {
+        final Map<String, CollectionStatistics> layerStats = Maps.newHashMap();
+        for (final String layer : LAYERS) {
+            layerStats.put(layer, searcher.collectionStatistics(layer));
+        }
+        final Map<Term, TermStatistics> termStats = Maps.newHashMap();
+        for (final TermVector query : queries) {
+            for (final Term term : query.getTerms()) {
+                final org.apache.lucene.index.Term luceneTerm = new org.apache.lucene.index.Term(
+                        term.getField(), term.getValue());
+                termStats.put(term, searcher.termStatistics(luceneTerm,
+                        TermContext.build(searcher.getTopReaderContext(), luceneTerm)));
+            }
+        }
+        return new Ranker.Statistics(layerStats, termStats);
+    }
+
+}
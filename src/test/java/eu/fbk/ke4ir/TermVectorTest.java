@@ -1,7 +1,14 @@
 package eu.fbk.ke4ir;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import eu.fbk.ke4ir.TermVector;
@@ -9,7 +16,7 @@ import eu.fbk.ke4ir.TermVector;
 public class TermVectorTest {
 
     @Test
-    public void test() {
+    public void test() throws Throwable {
         final TermVector v1 = TermVector.builder().addTerm("textual", "stem1", 1, 0.5)
                 .addTerm("uri", "concept1").build();
         final TermVector v2 = TermVector.builder().addTerm("textual", "stem1", 1, 0.5)
@@ -20,6 +27,26 @@ public class TermVectorTest {
         System.out.println(v2.getTerms("textual"));
         System.out.println(v2.getTerms("uri"));
         System.out.println(v2.project(ImmutableList.of("uri")));
+
+        final Map<String, TermVector> vectors = ImmutableMap.of("d1", v1, "d2", v2);
+        final StringWriter writer = new StringWriter();
+        TermVector.write(writer, vectors);
+        final Map<String, TermVector> read = Maps.newLinkedHashMap();
+        TermVector.iterate(new StringReader(writer.toString())).forEachRemaining(
+                e -> Assert.assertNull(read.put(e.getKey(), e.getValue())));
+        Assert.assertEquals(vectors, read);
+
+        for (final TermVector vector : new TermVector[] { v1, v2, v1.add(v2).scale(0.3),
+                TermVector.EMPTY }) {
+            final byte[] bytes = vector.toBytes();
+            final byte[] padded = new byte[bytes.length + 4];
+            System.arraycopy(bytes, 0, padded, 2, bytes.length);
+            Assert.assertEquals(vector, TermVector.fromBytes(padded, 2, bytes.length));
+            for (final Term term : vector.getTerms()) {
+                Assert.assertEquals(term.getFrequency(), TermVector.fromBytes(bytes, 0,
+                        bytes.length).getTerm(term.getField(), term.getValue()).getFrequency());
+            }
+        }
     }
 
 }